@@ -1,5 +1,6 @@
 package com.kuriosityrobotics.firstforward.robot;
 
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.PoseAtTime;
 import com.kuriosityrobotics.firstforward.robot.util.math.Point;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 
@@ -14,6 +15,19 @@ public interface LocationProvider {
     Pose getPose();
     Pose getVelocity();
 
+    /**
+     * @param time a {@link android.os.SystemClock#elapsedRealtime()} timestamp
+     * @return the pose at {@code time}.  Providers that don't keep a history just return the
+     * current pose, marked {@link PoseAtTime.Status#NO_HISTORY}.
+     */
+    default PoseAtTime getPoseAt(long time) {
+        return new PoseAtTime(time, PoseAtTime.Status.NO_HISTORY, getPose(), getVelocity());
+    }
+
+    default Pose getVelocityAt(long time) {
+        return getPoseAt(time).getVelocity();
+    }
+
     default double distanceToPoint(Point point) {
         return getPose().distance(point);
     }
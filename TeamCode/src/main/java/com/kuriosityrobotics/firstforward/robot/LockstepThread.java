@@ -0,0 +1,146 @@
+package com.kuriosityrobotics.firstforward.robot;
+
+import android.util.Log;
+
+import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.modules.drivetrain.Drivetrain;
+import com.kuriosityrobotics.firstforward.robot.pathfollow.PurePursuit;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorClock;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorThread;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
+import com.kuriosityrobotics.firstforward.robot.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * With {@link Robot#LOCKSTEP}, replaces the control hub sensor, the fusion thread and the
+ * drivetrain's place on the module thread with one fixed rate loop.  Every tick bulk reads the
+ * control hub, updates odometry, fuses, ticks the path being followed and writes the drivetrain,
+ * in that order, so each motor write is based on the reading taken at the start of the same
+ * tick.
+ * <p>
+ * The drivetrain records the latency from reading to write in both modes, so they can be compared
+ * directly.
+ */
+public class LockstepThread implements Runnable, Telemeter {
+    private static final double TICK_HZ = 100;
+    private static final long TICK_NANOS = (long) (TimeUnit.SECONDS.toNanos(1) / TICK_HZ);
+
+    private final Robot robot;
+    private final SensorThread sensorThread;
+    private final ExtendedKalmanFilter filter;
+    private final Drivetrain drivetrain;
+
+    private final AtomicReference<PurePursuit> path = new AtomicReference<>();
+    // whoever is waiting in follow(), woken once the path is done
+    private volatile Thread follower;
+    // how long each tick takes, start to drivetrain write
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    private volatile long overruns = 0;
+    private boolean started = false;
+
+    public LockstepThread(Robot robot, SensorThread sensorThread, Drivetrain drivetrain) {
+        this.robot = robot;
+        this.sensorThread = sensorThread;
+        this.filter = sensorThread.getKalmanFilter();
+        this.drivetrain = drivetrain;
+    }
+
+    @Override
+    public void run() {
+        filter.setFusionThread(Thread.currentThread());
+        try {
+            long nextTick = SensorClock.nanos();
+            while (robot.running()) {
+                tick();
+
+                nextTick += TICK_NANOS;
+                if (nextTick - SensorClock.nanos() > 0) {
+                    parkUntil(nextTick);
+                } else {
+                    // don't try to catch up;  a burst of ticks on the same data is no use
+                    overruns++;
+                    nextTick = SensorClock.nanos();
+                }
+            }
+        } finally {
+            // the filter outlives the robot, so hand fusing back to whoever submits
+            filter.setFusionThread(null);
+            filter.fuse();
+            path.set(null);
+        }
+        Log.v("LockstepThread", "Exited due to opMode no longer being active.");
+    }
+
+    /**
+     * Parks until {@code deadline} ({@link SensorClock#nanos()}).  This is also the filter's fusion
+     * thread, so every IMU or vision datum (and the odometry prediction sent during the tick) unparks
+     * it;  those wakeups are ignored, and fused at the next tick as usual.
+     */
+    private void parkUntil(long deadline) {
+        long wait;
+        while (robot.running() && (wait = deadline - SensorClock.nanos()) > 0)
+            LockSupport.parkNanos(this, wait);
+    }
+
+    private void tick() {
+        if (!started && robot.started()) {
+            drivetrain.onStart();
+            started = true;
+        }
+
+        long sampleTime = sensorThread.readControlHub();
+        filter.fuse();
+
+        PurePursuit following = path.get();
+        if (following != null && !following.update(robot, drivetrain) && path.compareAndSet(following, null)) {
+            Thread waiting = follower;
+            if (waiting != null)
+                LockSupport.unpark(waiting);
+        }
+
+        drivetrain.update();
+        tickTimes.record(SensorClock.nanos() - sampleTime);
+    }
+
+    /**
+     * Hands {@code path} to the lockstep loop, which ticks it on its own thread, and waits here
+     * until the path is done or the opmode stops.
+     */
+    public void follow(PurePursuit path) {
+        follower = Thread.currentThread();
+        try {
+            this.path.set(path);
+            // woken when the path is done;  any other wakeup just goes round again, and the timeout
+            // catches the opmode stopping
+            while (robot.isOpModeActive() && this.path.get() == path)
+                LockSupport.parkNanos(this, TICK_NANOS);
+        } finally {
+            this.path.compareAndSet(path, null);
+            follower = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "LockstepThread";
+    }
+
+    @Override
+    public boolean isOn() {
+        return true;
+    }
+
+    @Override
+    public List<String> getTelemetryData() {
+        List<String> data = new ArrayList<>();
+        data.add("Tick (read to write): " + tickTimes.summary());
+        data.add("Overruns: " + overruns);
+        data.add("Following a path: " + (path.get() != null));
+        return data;
+    }
+}
@@ -0,0 +1,122 @@
+package com.kuriosityrobotics.firstforward.robot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool with a bounded queue that keeps track of how deep its queue gets and how long
+ * tasks wait in it.
+ * <p>
+ * When the queue is full, a new task either replaces the oldest queued one (for work where only
+ * the newest input matters, like camera frames) or is rejected.
+ */
+public class MeteredExecutor extends ThreadPoolExecutor {
+    // weight of the newest wait in the running average
+    private static final double AVERAGE_WEIGHT = .05;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+    private volatile long maxWaitNanos = 0;
+    private volatile double averageWaitNanos = 0;
+
+    public MeteredExecutor(int threads, int queueCapacity, boolean dropOldest, ThreadFactory threadFactory) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+        setRejectedExecutionHandler(dropOldest ? new DropOldest() : new Reject());
+        prestartAllCoreThreads();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        super.execute(new Metered(command, System.nanoTime()));
+
+        int depth = getQueue().size();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+    }
+
+    private synchronized void recordWait(long waitNanos) {
+        if (waitNanos > maxWaitNanos)
+            maxWaitNanos = waitNanos;
+        averageWaitNanos = averageWaitNanos == 0 ? waitNanos : (1 - AVERAGE_WEIGHT) * averageWaitNanos + AVERAGE_WEIGHT * waitNanos;
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public double getAverageWaitMillis() {
+        return averageWaitNanos / 1e6;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return tasks that were replaced or rejected because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private final class Metered implements Runnable {
+        private final Runnable task;
+        private final long enqueueTime;
+
+        Metered(Runnable task, long enqueueTime) {
+            this.task = task;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public void run() {
+            recordWait(System.nanoTime() - enqueueTime);
+            try {
+                task.run();
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class DropOldest implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                return;
+
+            // every thread is already started, so queueing directly is all execute() would do
+            while (!executor.getQueue().offer(r)) {
+                if (executor.getQueue().poll() != null)
+                    ((MeteredExecutor) executor).dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class Reject extends AbortPolicy {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            ((MeteredExecutor) executor).dropped.incrementAndGet();
+            super.rejectedExecution(r, executor);
+        }
+    }
+}
@@ -11,7 +11,10 @@ import com.kuriosityrobotics.firstforward.robot.modules.leds.LEDModule;
 import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule;
 import com.kuriosityrobotics.firstforward.robot.pathfollow.ActionExecutor;
 import com.kuriosityrobotics.firstforward.robot.pathfollow.PurePursuit;
+import com.kuriosityrobotics.firstforward.robot.sensors.FusionThread;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
 import com.kuriosityrobotics.firstforward.robot.sensors.SensorThread;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.PoseAtTime;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 import com.kuriosityrobotics.firstforward.robot.vision.VisionThread;
 import com.qualcomm.hardware.lynx.LynxModule;
@@ -24,10 +27,15 @@ import org.firstinspires.ftc.robotcore.external.hardware.camera.WebcamName;
 
 public class Robot implements LocationProvider {
     public static final boolean DEBUG = false;
+    // read, fuse, follow and drive in one fixed rate loop instead of across three threads (see
+    // LockstepThread)
+    public static final boolean LOCKSTEP = false;
     private static final String configLocation = "configurations/mainconfig.toml";
     private static boolean blue = false;
     private static boolean carousel = false;
     private final SensorThread sensorThread;
+    private final FusionThread fusionThread;
+    private final LockstepThread lockstepThread;
     private final ModuleThread moduleThread;
     private final VisionThread visionThread;
     private final DebugThread debugThread;
@@ -36,12 +44,14 @@ public class Robot implements LocationProvider {
     private final OuttakeModule outtakeModule;
     private final CarouselModule carouselModule;
     private final TelemetryDump telemetryDump;
+    private final RobotExecutors executors;
     private final HardwareMap hardwareMap;
     private final LinearOpMode linearOpMode;
     private final LynxModule controlHub;
     private final LynxModule expansionHub;
     private final WebcamName camera;
     private final boolean useCamera;
+    private final Module[] modules;
 
     public Robot(HardwareMap hardwareMap, Telemetry telemetry, LinearOpMode linearOpMode, boolean useCamera) {
         this.hardwareMap = hardwareMap;
@@ -50,6 +60,8 @@ public class Robot implements LocationProvider {
         this.camera = hardwareMap.get(WebcamName.class, "Webcam 1");
 
         telemetryDump = new TelemetryDump(telemetry);
+        executors = new RobotExecutors();
+        telemetryDump.registerTelemeter(executors);
 
         try {
             controlHub = hardwareMap.get(LynxModule.class, "Control Hub");
@@ -67,22 +79,22 @@ public class Robot implements LocationProvider {
         telemetryDump.registerTelemeter(sensorThread);
 
         // modules
-        drivetrain = new Drivetrain(sensorThread.getOdometry(), hardwareMap);
+        drivetrain = new Drivetrain(sensorThread.getOdometry(), hardwareMap, () -> sensorThread.getPoseSnapshot().getTime());
         telemetryDump.registerTelemeter(drivetrain);
 
-        outtakeModule = new OuttakeModule(this, hardwareMap);
+        outtakeModule = new OuttakeModule(this, hardwareMap, sensorThread.getHubData());
         telemetryDump.registerTelemeter(outtakeModule);
 
-        intakeModule = new IntakeModule(hardwareMap, outtakeModule);
+        intakeModule = new IntakeModule(hardwareMap, outtakeModule, sensorThread.getHubData());
         telemetryDump.registerTelemeter(intakeModule);
 
-        carouselModule = new CarouselModule(hardwareMap);
+        carouselModule = new CarouselModule(hardwareMap, sensorThread.getHubData());
         telemetryDump.registerTelemeter(carouselModule);
 
         LEDModule ledModule = new LEDModule(this);
         telemetryDump.registerTelemeter(ledModule);
 
-        Module[] modules = new Module[]{
+        modules = new Module[]{
                 drivetrain,
                 intakeModule,
                 outtakeModule,
@@ -91,7 +103,22 @@ public class Robot implements LocationProvider {
         };
 
         // threads
-        moduleThread = new ModuleThread(this, modules);
+        if (LOCKSTEP) {
+            fusionThread = null;
+            lockstepThread = new LockstepThread(this, sensorThread, drivetrain);
+            telemetryDump.registerTelemeter(lockstepThread);
+            // the lockstep loop updates the drivetrain
+            moduleThread = new ModuleThread(this, new Module[]{
+                    intakeModule,
+                    outtakeModule,
+                    carouselModule,
+                    ledModule
+            });
+        } else {
+            fusionThread = new FusionThread(this, sensorThread.getKalmanFilter());
+            lockstepThread = null;
+            moduleThread = new ModuleThread(this, modules);
+        }
 
         this.useCamera = useCamera;
         visionThread = new VisionThread(this, camera);
@@ -131,25 +158,16 @@ public class Robot implements LocationProvider {
     }
 
     public void start() {
-        Thread[] threads;
+        executors.startLoop(RobotExecutors.Workload.SENSOR, "SensorThread", sensorThread);
+        if (LOCKSTEP)
+            executors.startLoop(RobotExecutors.Workload.SENSOR, "LockstepThread", lockstepThread);
+        else
+            executors.startLoop(RobotExecutors.Workload.SENSOR, "FusionThread", fusionThread);
+        executors.startLoop(RobotExecutors.Workload.CONTROL, "ModuleThread", moduleThread);
         if (this.useCamera) {
-            threads = new Thread[]{
-                    new Thread(sensorThread, "SensorThread"),
-                    new Thread(moduleThread, "ModuleThread"),
-                    new Thread(visionThread, "VisionThread"),
-                    new Thread(debugThread, "DebugThread")
-            };
-        } else {
-            threads = new Thread[]{
-                    new Thread(sensorThread, "SensorThread"),
-                    new Thread(moduleThread, "ModuleThread"),
-                    new Thread(debugThread, "DebugThread")
-            };
-        }
-
-        for (Thread thread : threads) {
-            thread.start();
+            executors.startLoop(RobotExecutors.Workload.VISION, "VisionThread", visionThread);
         }
+        executors.startLoop(RobotExecutors.Workload.LOGGING, "DebugThread", debugThread);
     }
 
     public boolean isOpModeActive() {
@@ -182,6 +200,11 @@ public class Robot implements LocationProvider {
         return sensorThread.getVelocity();
     }
 
+    @Override
+    public PoseAtTime getPoseAt(long time) {
+        return sensorThread.getPoseAt(time);
+    }
+
     public void resetPose(Pose pose) {
         sensorThread.resetPose(pose);
     }
@@ -190,7 +213,10 @@ public class Robot implements LocationProvider {
         path.reset();
 
         telemetryDump.registerTelemeter(path);
-        while (isOpModeActive() && path.update(this, drivetrain));
+        if (LOCKSTEP)
+            lockstepThread.follow(path);
+        else
+            while (isOpModeActive() && path.update(this, drivetrain));
         telemetryDump.removeTelemeter(path);
     }
 
@@ -234,6 +260,22 @@ public class Robot implements LocationProvider {
         return expansionHub;
     }
 
+    public RobotExecutors getExecutors() {
+        return executors;
+    }
+
+    public HubData getHubData() {
+        return sensorThread.getHubData();
+    }
+
+    public Module[] getModules() {
+        return modules;
+    }
+
+    public boolean usingCamera() {
+        return useCamera;
+    }
+
     public WebcamName isUseCamera() {
         return camera;
     }
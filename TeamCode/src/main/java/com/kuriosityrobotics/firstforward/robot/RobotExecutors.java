@@ -0,0 +1,162 @@
+package com.kuriosityrobotics.firstforward.robot;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every thread the robot runs, grouped by what it does.  Each kind of work gets its own Android
+ * thread priority, so hub reads, filter maths and module updates get the CPU ahead of vision and
+ * logging, and its own bounded pool for short tasks.  Filter maths that splits across cores (see
+ * {@link #getSensorComputePool()}) gets a fork/join pool of its own, rather than the common pool
+ * every other library in the app shares.
+ * <p>
+ * The long running loops ({@link #startLoop}) all exit once {@link Robot#running()} goes false;
+ * when the last one does, the pools are shut down too.
+ */
+public class RobotExecutors implements Telemeter {
+    public enum Workload {
+        // nice values;  lower runs first.  Linux doesn't strictly preempt on these, but the gap
+        // between the top two and the bottom two is big enough that it's close
+        SENSOR(Process.THREAD_PRIORITY_URGENT_DISPLAY, 1, 4, false),
+        CONTROL(Process.THREAD_PRIORITY_DISPLAY, 1, 2, false),
+        // a stale frame isn't worth processing, so the newest replaces the oldest
+        VISION(Process.THREAD_PRIORITY_BACKGROUND, 2, 4, true),
+        LOGGING(Process.THREAD_PRIORITY_LOWEST, 1, 256, true);
+
+        final int androidPriority;
+        final int threads;
+        final int queueCapacity;
+        final boolean dropOldest;
+
+        Workload(int androidPriority, int threads, int queueCapacity, boolean dropOldest) {
+            this.androidPriority = androidPriority;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.dropOldest = dropOldest;
+        }
+    }
+
+    // the control hub has four cores;  leave the rest to the loops themselves
+    private static final int SENSOR_COMPUTE_THREADS = 2;
+
+    private final Map<Workload, MeteredExecutor> executors = new EnumMap<>(Workload.class);
+    private final ForkJoinPool sensorCompute = new ForkJoinPool(SENSOR_COMPUTE_THREADS,
+            workerThreadFactory(Workload.SENSOR, "sensor-compute"), null, false);
+    private final AtomicInteger runningLoops = new AtomicInteger();
+
+    public RobotExecutors() {
+        for (Workload workload : Workload.values()) {
+            executors.put(workload, new MeteredExecutor(workload.threads, workload.queueCapacity, workload.dropOldest,
+                    threadFactory(workload, workload.name().toLowerCase(Locale.US) + "-pool")));
+        }
+    }
+
+    /**
+     * @return a factory for daemon threads running at {@code workload}'s priority
+     */
+    public static ThreadFactory threadFactory(Workload workload, String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(workload.androidPriority);
+                runnable.run();
+            }, name + "-" + count.getAndIncrement());
+            // nothing here should keep the app alive past the opmode
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory workerThreadFactory(Workload workload, String name) {
+        AtomicInteger count = new AtomicInteger();
+        return pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Process.setThreadPriority(workload.androidPriority);
+                }
+            };
+            thread.setName(name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @return the fork/join pool for splitting sensor maths (e.g. the particle filter's updates)
+     * across cores, at {@link Workload#SENSOR}'s priority
+     */
+    public ForkJoinPool getSensorComputePool() {
+        return sensorCompute;
+    }
+
+    /**
+     * @return the pool for {@code workload}'s short tasks
+     */
+    public MeteredExecutor get(Workload workload) {
+        return executors.get(workload);
+    }
+
+    /**
+     * Starts a loop that runs until {@link Robot#running()} goes false on its own thread.
+     */
+    public void startLoop(Workload workload, String name, Runnable loop) {
+        runningLoops.incrementAndGet();
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(workload.androidPriority);
+            try {
+                loop.run();
+            } finally {
+                if (runningLoops.decrementAndGet() == 0)
+                    shutdown();
+            }
+        }, name);
+        thread.start();
+    }
+
+    private void shutdown() {
+        for (MeteredExecutor executor : executors.values())
+            executor.shutdownNow();
+        sensorCompute.shutdownNow();
+
+        Log.v("RobotExecutors", "Shut down after every loop exited.");
+    }
+
+    @Override
+    public String getName() {
+        return "RobotExecutors";
+    }
+
+    @Override
+    public boolean isOn() {
+        return true;
+    }
+
+    @Override
+    public List<String> getTelemetryData() {
+        List<String> data = new ArrayList<>();
+        for (Map.Entry<Workload, MeteredExecutor> entry : executors.entrySet()) {
+            MeteredExecutor executor = entry.getValue();
+            data.add(String.format(Locale.US, "%s: %d queued (max %d), wait %.1f avg %.1f max, %d done, %d dropped",
+                    entry.getKey(), executor.getQueueDepth(), executor.getMaxQueueDepth(),
+                    executor.getAverageWaitMillis(), executor.getMaxWaitMillis(),
+                    executor.getCompleted(), executor.getDropped()));
+        }
+        data.add(String.format(Locale.US, "SENSOR compute: %d threads, %d active, %d steals",
+                sensorCompute.getPoolSize(), sensorCompute.getActiveThreadCount(), sensorCompute.getStealCount()));
+        return data;
+    }
+}
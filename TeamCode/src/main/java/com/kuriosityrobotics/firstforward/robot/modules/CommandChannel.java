@@ -0,0 +1,89 @@
+package com.kuriosityrobotics.firstforward.robot.modules;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Hands immutable commands from opmode code, actions and other modules to the module that carries
+ * them out.  Only the latest command matters, so publishing replaces it in one atomic step and a
+ * module can never see half of one command and half of another.
+ * <p>
+ * The module {@link #take()}s the latest command once at the start of each update and works from
+ * that for the whole update.  Every distinct command gets a sequence number, so whoever published
+ * it can tell when it took effect ({@link #hasTakenEffect(long)}).
+ * <p>
+ * Lock free;  producers retry on contention instead of blocking.
+ */
+public class CommandChannel<T> {
+    private static final class Published<T> {
+        final long sequence;
+        final T command;
+
+        Published(long sequence, T command) {
+            this.sequence = sequence;
+            this.command = command;
+        }
+    }
+
+    private final AtomicReference<Published<T>> latest;
+    private volatile long appliedSequence;
+
+    public CommandChannel(T initialCommand) {
+        this.latest = new AtomicReference<>(new Published<>(0, initialCommand));
+        this.appliedSequence = 0;
+    }
+
+    /**
+     * @return the latest command, whether or not it's taken effect yet
+     */
+    public T get() {
+        return latest.get().command;
+    }
+
+    /**
+     * Replaces the latest command, whatever it is.
+     *
+     * @return the command's sequence number
+     */
+    public long publish(T command) {
+        return update(previous -> command);
+    }
+
+    /**
+     * Replaces the latest command with {@code edit} applied to it.  {@code edit} may be called
+     * more than once if another thread publishes at the same time, so it mustn't have side effects.
+     * If it returns the same command, nothing is published.
+     *
+     * @return the sequence number of the resulting command
+     */
+    public long update(UnaryOperator<T> edit) {
+        while (true) {
+            Published<T> previous = latest.get();
+            T command = edit.apply(previous.command);
+            if (command == previous.command)
+                return previous.sequence;
+
+            if (latest.compareAndSet(previous, new Published<>(previous.sequence + 1, command)))
+                return previous.sequence + 1;
+        }
+    }
+
+    /**
+     * Called by the module at the start of each update.
+     *
+     * @return the latest command, which counts as having taken effect from now on
+     */
+    public T take() {
+        Published<T> published = latest.get();
+        appliedSequence = published.sequence;
+        return published.command;
+    }
+
+    /**
+     * @param sequence returned when the command was published
+     * @return whether the module has started carrying out that command, or a later one
+     */
+    public boolean hasTakenEffect(long sequence) {
+        return appliedSequence >= sequence;
+    }
+}
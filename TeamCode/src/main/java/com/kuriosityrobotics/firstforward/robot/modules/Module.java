@@ -1,6 +1,17 @@
 package com.kuriosityrobotics.firstforward.robot.modules;
 
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
+
 public interface Module {
+    /**
+     * When a loop runs long, low priority modules wait for the next one so high priority ones
+     * aren't held up.
+     */
+    enum Priority {
+        HIGH,
+        LOW
+    }
+
     void update();
 
     default void onStart() {}
@@ -9,5 +20,33 @@ public interface Module {
 
     boolean isOn();
 
+    /**
+     * @return whether the next update reads anything from the expansion hub's bulk data (motor
+     * encoders, analog and digital inputs).  When no module does, the sensor thread reads the
+     * expansion hub less often.
+     */
+    default boolean needsExpansionHubData() {
+        return true;
+    }
+
+    /**
+     * @return the hub this module's hardware writes go to.  Each hub has its own command channel,
+     * so modules on different hubs are updated concurrently.
+     */
+    default HubData.Hub getHub() {
+        return HubData.Hub.CONTROL;
+    }
+
+    default Priority getPriority() {
+        return Priority.HIGH;
+    }
+
+    /**
+     * @return how many times a second, at most, to update;  infinity for every loop
+     */
+    default double getMaxFrequency() {
+        return Double.POSITIVE_INFINITY;
+    }
+
     String getName();
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.kuriosityrobotics.firstforward.robot.modules;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates one lane of modules each loop, each at no more than its
+ * {@link Module#getMaxFrequency()}, high priority modules first.
+ * <p>
+ * Once the loop has run past {@link #LOOP_BUDGET_MILLIS}, low priority modules that are due are
+ * shed until the next loop, so they can't hold up motor commands.  A module is never shed once
+ * it's a whole period (or budget, for every-loop modules) late, so a string of slow loops can't
+ * starve it.
+ */
+class ModuleScheduler {
+    static final long LOOP_BUDGET_MILLIS = 10;
+
+    private final Module[] modules;
+    private final long[] lastUpdateTimes;
+    private final long[] sheds;
+
+    ModuleScheduler(Module[] modules) {
+        this.modules = modules.clone();
+        // stable, so modules of the same priority keep their order
+        Arrays.sort(this.modules, Comparator.comparing(Module::getPriority));
+
+        this.lastUpdateTimes = new long[modules.length];
+        Arrays.fill(lastUpdateTimes, Long.MIN_VALUE / 2);
+        this.sheds = new long[modules.length];
+    }
+
+    static long periodMillis(double maxFrequency) {
+        return Double.isInfinite(maxFrequency) ? 0 : (long) (1000 / maxFrequency);
+    }
+
+    /**
+     * @param late how long ago the update was due
+     * @return whether an update that's due can wait for the next loop
+     */
+    static boolean canShed(long loopStart, long now, long late, long period) {
+        return now - loopStart > LOOP_BUDGET_MILLIS && late < Math.max(period, LOOP_BUDGET_MILLIS);
+    }
+
+    /**
+     * @param loopStart when the loop started, so the budget covers everything it's done so far
+     * @param times     gets how long each module that ran took
+     * @return how long the lane took, in millis
+     */
+    long update(long loopStart, Map<String, Long> times) {
+        long laneStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < modules.length; i++) {
+            Module module = modules[i];
+            if (!module.isOn())
+                continue;
+
+            long start = SystemClock.elapsedRealtime();
+            long period = periodMillis(module.getMaxFrequency());
+            long late = start - (lastUpdateTimes[i] + period);
+            if (late < 0)
+                continue;
+
+            if (module.getPriority() == Module.Priority.LOW && canShed(loopStart, start, late, period)) {
+                sheds[i]++;
+                continue;
+            }
+
+            module.update();
+            lastUpdateTimes[i] = start;
+            times.put(module.getName(), SystemClock.elapsedRealtime() - start);
+        }
+        return SystemClock.elapsedRealtime() - laneStart;
+    }
+
+    /**
+     * Not thread safe;  call between loops.
+     */
+    List<String> getShedUpdates() {
+        List<String> data = new ArrayList<>();
+        for (int i = 0; i < modules.length; i++) {
+            if (sheds[i] > 0) {
+                data.add(String.format("%s's shed updates: %d", modules[i].getName(), sheds[i]));
+            }
+        }
+        return data;
+    }
+}
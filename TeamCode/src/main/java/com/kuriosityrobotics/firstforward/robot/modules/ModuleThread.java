@@ -4,34 +4,70 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.RobotExecutors;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedOutput;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * ModuleExecutor creates a new thread where modules will be executed and data will be retrieved
  * from the hubs.
+ * <p>
+ * With {@link #PARALLEL_HUB_LANES}, modules are split into lanes by the hub they write to.  The
+ * expansion hub lane runs on the control pool while this thread runs the control hub lane, and the
+ * loop waits for both, so a loop takes as long as the slower hub instead of both together.
+ * <p>
+ * Within a lane modules run at their own rates and priorities (see {@link ModuleScheduler}).
+ * Telemetry is sent at most {@link #TELEMETRY_HZ} times a second, and is shed like a low priority
+ * module when a loop runs long.
  */
 public class ModuleThread implements Runnable, Telemeter {
+    public static final boolean PARALLEL_HUB_LANES = true;
+    // the driver station only shows 4 updates a second anyway
+    private static final double TELEMETRY_HZ = 10;
+
     private final Robot robot;
     private final Module[] modules;
+    private final ModuleScheduler controlHubLane;
+    private final ModuleScheduler expansionHubLane;
 
     private boolean started = false;
+    private long lastTelemetryTime = Long.MIN_VALUE / 2;
+    private long shedTelemetryUpdates = 0;
 
     private long updateDuration = 0;
+    private long controlHubLaneDuration = 0, expansionHubLaneDuration = 0;
     private Map<String, Long> moduleUpdateTimes;
+    // hub writes the modules made last loop
+    private long issuedWrites = 0, suppressedWrites = 0;
 
     public ModuleThread(Robot robot, Module[] modules) {
         this.robot = robot;
         this.modules = modules;
+        this.controlHubLane = lane(modules, HubData.Hub.CONTROL);
+        this.expansionHubLane = lane(modules, HubData.Hub.EXPANSION);
 
         robot.getTelemetryDump().registerTelemeter(this);
         moduleUpdateTimes = new HashMap<>(5);
     }
 
+    private static ModuleScheduler lane(Module[] modules, HubData.Hub hub) {
+        List<Module> lane = new ArrayList<>();
+        for (Module module : modules) {
+            if (module.getHub() == hub) {
+                lane.add(module);
+            }
+        }
+        return new ModuleScheduler(lane.toArray(new Module[0]));
+    }
+
     /**
      * Calls .update() on all modules and telemetryDump while `robot.running()` is true.
      */
@@ -48,18 +84,39 @@ public class ModuleThread implements Runnable, Telemeter {
                 started = true;
             }
 
+            // every module this loop reads the same bulk data
+            robot.getHubData().beginLoop();
+            long issuedBefore = CachedOutput.getIssuedWrites();
+            long suppressedBefore = CachedOutput.getSuppressedWrites();
+
             Map<String, Long> aTime = new HashMap<>(5);
-            for (Module module : modules) {
-                if (module.isOn()) {
-                    long start = SystemClock.elapsedRealtime();
-                    module.update();
-                    aTime.put(module.getName(), SystemClock.elapsedRealtime() - start);
-                }
+            long controlHubTime, expansionHubTime;
+            if (PARALLEL_HUB_LANES) {
+                Map<String, Long> expansionHubTimes = new HashMap<>(5);
+                // the control pool, so it runs at this thread's priority
+                Future<Long> expansionHubUpdate = robot.getExecutors().get(RobotExecutors.Workload.CONTROL).submit(() -> {
+                    robot.getHubData().joinLoop();
+                    return expansionHubLane.update(overallStart, expansionHubTimes);
+                });
+
+                controlHubTime = controlHubLane.update(overallStart, aTime);
+                expansionHubTime = awaitLane(expansionHubUpdate);
+                aTime.putAll(expansionHubTimes);
+            } else {
+                controlHubTime = controlHubLane.update(overallStart, aTime);
+                expansionHubTime = expansionHubLane.update(overallStart, aTime);
             }
 
-            robot.getTelemetryDump().update();
+            long issued = CachedOutput.getIssuedWrites() - issuedBefore;
+            long suppressed = CachedOutput.getSuppressedWrites() - suppressedBefore;
+
+            updateTelemetry(overallStart);
             synchronized (this) {
                 moduleUpdateTimes = aTime;
+                controlHubLaneDuration = controlHubTime;
+                expansionHubLaneDuration = expansionHubTime;
+                issuedWrites = issued;
+                suppressedWrites = suppressed;
                 updateDuration = SystemClock.elapsedRealtime() - overallStart;
             }
         }
@@ -73,6 +130,36 @@ public class ModuleThread implements Runnable, Telemeter {
         Log.v("ModuleThread", "Exited due to opMode no longer being active.");
     }
 
+    private void updateTelemetry(long loopStart) {
+        long now = SystemClock.elapsedRealtime();
+        long period = ModuleScheduler.periodMillis(TELEMETRY_HZ);
+        long late = now - (lastTelemetryTime + period);
+        if (late < 0)
+            return;
+
+        if (ModuleScheduler.canShed(loopStart, now, late, period)) {
+            shedTelemetryUpdates++;
+            return;
+        }
+
+        robot.getTelemetryDump().update();
+        lastTelemetryTime = now;
+    }
+
+    private static long awaitLane(Future<Long> lane) {
+        try {
+            return lane.get();
+        } catch (ExecutionException e) {
+            // fail the same way a module throwing on this thread would
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public String getName() {
         return "ModuleThread";
@@ -89,6 +176,7 @@ public class ModuleThread implements Runnable, Telemeter {
             List<String> data = new ArrayList<>();
 
             data.add("Overall Update time: " + updateDuration);
+            data.add("Control hub lane: " + controlHubLaneDuration + ", expansion hub lane: " + expansionHubLaneDuration + (PARALLEL_HUB_LANES ? " (parallel)" : " (serial)"));
             long moduleUpdate = 0;
             for (Map.Entry<String, Long> entry : moduleUpdateTimes.entrySet()) { // so much cleaner compared to foreach
                 String name = entry.getKey();
@@ -98,6 +186,10 @@ public class ModuleThread implements Runnable, Telemeter {
             }
 
             data.add("Update Time not including modules: " + (updateDuration - moduleUpdate));
+            data.add("Hub writes last loop: " + issuedWrites + " (" + suppressedWrites + " suppressed)");
+            data.addAll(controlHubLane.getShedUpdates());
+            data.addAll(expansionHubLane.getShedUpdates());
+            data.add("Shed telemetry updates: " + shedTelemetryUpdates);
 
             return data;
         }
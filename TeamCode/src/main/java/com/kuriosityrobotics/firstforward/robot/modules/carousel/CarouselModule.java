@@ -8,6 +8,8 @@ import android.util.Log;
 import com.kuriosityrobotics.firstforward.robot.Robot;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedMotor;
 import com.qualcomm.robotcore.hardware.DcMotor;
 import com.qualcomm.robotcore.hardware.DcMotorEx;
 import com.qualcomm.robotcore.hardware.HardwareMap;
@@ -34,14 +36,21 @@ public class CarouselModule implements Module, Telemeter {
     private Long spinStartTimeMillis = null;
 
     //motors
-    private final DcMotorEx carouselMotor;
+    private final CachedMotor carouselMotor;
+    private final HubData hubData;
+
+    public CarouselModule(HardwareMap hardwareMap, HubData hubData) {
+        this.hubData = hubData;
 
-    public CarouselModule(HardwareMap hardwareMap) {
         // original:  1.4 * pi
         this.setMaxSpeed(0.8 * PI);
 
-        carouselMotor = (DcMotorEx) hardwareMap.dcMotor.get("carousel");
+        DcMotorEx carouselMotor = (DcMotorEx) hardwareMap.dcMotor.get("carousel");
         carouselMotor.setZeroPowerBehavior(DcMotor.ZeroPowerBehavior.BRAKE);
+        // the ramps step the velocity by a few hundredths of a rad/s a loop;  a tick per second
+        // is the finest the hub can run at anyway
+        this.carouselMotor = new CachedMotor(carouselMotor, CachedMotor.DEFAULT_POWER_TOLERANCE,
+                CachedMotor.DEFAULT_VELOCITY_TOLERANCE, 2 * PI / TICKS_PER_REVOLUTION);
     }
 
     public CarouselAction carouselAction() {
@@ -60,14 +69,14 @@ public class CarouselModule implements Module, Telemeter {
             if (spinStartTimeMillis == null) {
 //                Log.v("carousel", "spin: " + true);
                 spinStartTimeMillis = SystemClock.elapsedRealtime();
-                startPosition = carouselMotor.getCurrentPosition();
+                startPosition = hubData.getCurrentPosition(HubData.Hub.EXPANSION, carouselMotor.getMotor());
             }
 
             if (isSlow) {
                 speed = (0.55 * PI) * Range.clip((((double)(SystemClock.elapsedRealtime() - spinStartTimeMillis)) / 1300), 0, 1);
                 carouselMotor.setVelocity(isClockwise() ? -speed : speed, AngleUnit.RADIANS);
             } else {
-                double posRadians = ticksToRadians(Math.abs(startPosition - carouselMotor.getCurrentPosition()));
+                double posRadians = ticksToRadians(Math.abs(startPosition - hubData.getCurrentPosition(HubData.Hub.EXPANSION, carouselMotor.getMotor())));
 
                 if (posRadians > (2.51 * PI)) {
                     carouselMotor.setVelocity(0);
@@ -88,6 +97,27 @@ public class CarouselModule implements Module, Telemeter {
         }
     }
 
+    @Override
+    public HubData.Hub getHub() {
+        return HubData.Hub.EXPANSION;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.LOW;
+    }
+
+    @Override
+    public double getMaxFrequency() {
+        // the spin ramps over hundreds of millis, so this is plenty
+        return 50;
+    }
+
+    @Override
+    public boolean needsExpansionHubData() {
+        return isSpin();
+    }
+
     @Override
     public boolean isOn() {
         return true;
@@ -103,7 +133,7 @@ public class CarouselModule implements Module, Telemeter {
         ArrayList<String> data = new ArrayList<>();
 
         data.add("spin: " + isSpin());
-        data.add("velocity: " + carouselMotor.getVelocity(AngleUnit.RADIANS));
+        data.add("velocity: " + ticksToRadians(hubData.getVelocity(HubData.Hub.EXPANSION, carouselMotor.getMotor())));
         data.add("target: " + target);
 
         return data;
@@ -6,19 +6,44 @@ import android.os.SystemClock;
 
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.modules.CommandChannel;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorClock;
+import com.kuriosityrobotics.firstforward.robot.util.LatencyHistogram;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 import com.qualcomm.robotcore.hardware.HardwareMap;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.LongSupplier;
 
 public class Drivetrain implements Module, Telemeter {
+    /**
+     * Movement powers, and the time of the newest sensor datum behind the pose they were worked
+     * out from.
+     */
+    private static final class Movement {
+        final Pose powers;
+        final long poseTime;
+
+        Movement(Pose powers, long poseTime) {
+            this.powers = powers;
+            this.poseTime = poseTime;
+        }
+    }
+
     final LocationProvider locationProvider;
     private final DrivetrainModule drivetrainModule;
+    // millis of the newest sensor datum in the filter's pose
+    private final LongSupplier poseTime;
 
     //states
-    public volatile double xMov, yMov, turnMov;
+    private final CommandChannel<Movement> movements;
+    private Movement lastActuated;
+    private double xMov, yMov, turnMov; // taken at the start of every update
+
+    // from the sensor reading a command was based on to the motor write that carried it out
+    private final LatencyHistogram latency = new LatencyHistogram();
 
     //braking states
     private final Braking brake = new Braking(); // whether or not to actively brake
@@ -27,15 +52,27 @@ public class Drivetrain implements Module, Telemeter {
     // stalling states
     private final StallDetector stallDetector = new StallDetector();
 
-    public Drivetrain(LocationProvider locationProvider, HardwareMap hardwareMap) {
+    /**
+     * @param poseTime millis of the newest sensor datum behind the pose callers compute movements
+     *                 from, so every command can be traced back to the reading it was based on
+     */
+    public Drivetrain(LocationProvider locationProvider, HardwareMap hardwareMap, LongSupplier poseTime) {
         this.locationProvider = locationProvider;
+        this.poseTime = poseTime;
         drivetrainModule = new DrivetrainModule(hardwareMap);
+        movements = new CommandChannel<>(new Movement(Pose.ZERO, poseTime.getAsLong()));
+        lastActuated = movements.get();
     }
 
-    public void setMovements(double xMov, double yMov, double turnMov) {
-        this.xMov = xMov;
-        this.yMov = yMov;
-        this.turnMov = turnMov;
+    /**
+     * @return the sequence number to pass to {@link #hasTakenEffect(long)}
+     */
+    public long setMovements(double xMov, double yMov, double turnMov) {
+        return movements.publish(new Movement(new Pose(xMov, yMov, turnMov), poseTime.getAsLong()));
+    }
+
+    public boolean hasTakenEffect(long sequence) {
+        return movements.hasTakenEffect(sequence);
     }
 
     @Override
@@ -52,6 +89,11 @@ public class Drivetrain implements Module, Telemeter {
     // updates drivetrainModule and odometry
     // gets updated in robot
     public void update() {
+        Movement movement = movements.take();
+        xMov = movement.powers.x;
+        yMov = movement.powers.y;
+        turnMov = movement.powers.heading;
+
         if (opmodeStarted) {
             if (movementsZero() && !locationProvider.getVelocity().equals(Pose.ZERO)) {
                 Pose brakeMovements = brake.getBrakeMovement(locationProvider.getPose().wrapped(), locationProvider.getVelocity());
@@ -64,13 +106,32 @@ public class Drivetrain implements Module, Telemeter {
 
             stallDetector.update(locationProvider.getVelocity(), xMov, yMov, turnMov);
             drivetrainModule.update();
+
+            // only the first write of each command;  repeating an old one isn't new latency
+            if (movement != lastActuated) {
+                latency.record(SensorClock.nanos() - movement.poseTime * 1_000_000);
+                lastActuated = movement;
+            }
         }
     }
 
+    /**
+     * @return latencies from the sensor reading behind each command to the motor write carrying it
+     * out.  The pose time is only to the millisecond, so these read up to 1 ms long.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
     public StallDetector getStallDetector() {
         return this.stallDetector;
     }
 
+    @Override
+    public boolean needsExpansionHubData() {
+        return false;
+    }
+
     @Override
     public boolean isOn() {
         return true;
@@ -94,6 +155,7 @@ public class Drivetrain implements Module, Telemeter {
 
         data.add("--");
         data.add("Stall Status: " + stallDetector.isStalled());
+        data.add("Sensor to actuation latency: " + latency.summary());
 
         return data;
     }
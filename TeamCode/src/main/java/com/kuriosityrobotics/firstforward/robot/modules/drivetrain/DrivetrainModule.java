@@ -7,7 +7,8 @@ import android.os.SystemClock;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
-import com.qualcomm.robotcore.hardware.DcMotor;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedMotor;
+import com.qualcomm.robotcore.hardware.DcMotorEx;
 import com.qualcomm.robotcore.hardware.DcMotorSimple;
 import com.qualcomm.robotcore.hardware.HardwareMap;
 
@@ -19,25 +20,26 @@ class DrivetrainModule implements Module, Telemeter {
     private double xMov, yMov, turnMov;
 
     //motors
-    private final DcMotor fLeft;
-    private final DcMotor fRight;
-    private final DcMotor bLeft;
-    private final DcMotor bRight;
+    private final CachedMotor fLeft;
+    private final CachedMotor fRight;
+    private final CachedMotor bLeft;
+    private final CachedMotor bRight;
 
     public DrivetrainModule(HardwareMap hardwareMap) {
-        fLeft = hardwareMap.dcMotor.get("fLeft");
-        fRight = hardwareMap.dcMotor.get("fRight");
-        bLeft = hardwareMap.dcMotor.get("bLeft");
-        bRight = hardwareMap.dcMotor.get("bRight");
-
-        fLeft.setDirection(DcMotorSimple.Direction.FORWARD);
-        fRight.setDirection(DcMotorSimple.Direction.REVERSE);
-        bLeft.setDirection(DcMotorSimple.Direction.FORWARD);
-        bRight.setDirection(DcMotorSimple.Direction.REVERSE);
+        fLeft = drivetrainMotor(hardwareMap, "fLeft", DcMotorSimple.Direction.FORWARD);
+        fRight = drivetrainMotor(hardwareMap, "fRight", DcMotorSimple.Direction.REVERSE);
+        bLeft = drivetrainMotor(hardwareMap, "bLeft", DcMotorSimple.Direction.FORWARD);
+        bRight = drivetrainMotor(hardwareMap, "bRight", DcMotorSimple.Direction.REVERSE);
 
 //        robot.telemetryDump.registerTelemeter(this);
     }
 
+    private static CachedMotor drivetrainMotor(HardwareMap hardwareMap, String name, DcMotorSimple.Direction direction) {
+        DcMotorEx motor = (DcMotorEx) hardwareMap.dcMotor.get(name);
+        motor.setDirection(direction);
+        return new CachedMotor(motor);
+    }
+
     //updates motor power
     public void update() {
         double fLPower = yMov + turnMov + xMov;
@@ -88,7 +90,7 @@ class DrivetrainModule implements Module, Telemeter {
         setMotorPower(bRight, bRPower);
     }
 
-    private void setMotorPower(DcMotor motor, double power) {
+    private void setMotorPower(CachedMotor motor, double power) {
         if (Math.abs(power) < 0.06) {
             motor.setPower(0);
         } else {
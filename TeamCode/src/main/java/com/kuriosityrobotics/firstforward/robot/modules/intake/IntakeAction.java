@@ -20,15 +20,14 @@ public class IntakeAction extends Action {
     public void tick() {
         super.tick();
 
-        intakeModule.intakePower = 1;
-
         long currentTime = SystemClock.elapsedRealtime();
 
         // if we've got the goods
-        if (intakeModule.hasMineral()) {
+        boolean hasMineral = intakeModule.hasMineral();
+        if (hasMineral) {
             this.gotMineralTime = currentTime;
-            intakeModule.intakePower = 0;
         }
+        intakeModule.command(command -> command.withPower(hasMineral ? 0 : 1));
 
         this.completed = gotMineralTime != null && gotMineralTime + END_DELAY <= currentTime;
     }
@@ -0,0 +1,25 @@
+package com.kuriosityrobotics.firstforward.robot.modules.intake;
+
+import com.kuriosityrobotics.firstforward.robot.modules.intake.IntakeModule.IntakePosition;
+
+/**
+ * Everything the intake is told to do, as one immutable value.  The {@code with} methods return
+ * this command if nothing would change.
+ */
+public final class IntakeCommand {
+    public final double intakePower;
+    public final IntakePosition targetIntakePosition;
+
+    public IntakeCommand(double intakePower, IntakePosition targetIntakePosition) {
+        this.intakePower = intakePower;
+        this.targetIntakePosition = targetIntakePosition;
+    }
+
+    public IntakeCommand withPower(double intakePower) {
+        return intakePower == this.intakePower ? this : new IntakeCommand(intakePower, targetIntakePosition);
+    }
+
+    public IntakeCommand withPosition(IntakePosition targetIntakePosition) {
+        return targetIntakePosition == this.targetIntakePosition ? this : new IntakeCommand(intakePower, targetIntakePosition);
+    }
+}
@@ -5,19 +5,23 @@ import static java.lang.Math.abs;
 import android.os.SystemClock;
 
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.modules.CommandChannel;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
 import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
 import com.kuriosityrobotics.firstforward.robot.util.wrappers.AnalogDistance;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedMotor;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedServo;
 import com.qualcomm.robotcore.hardware.AnalogInput;
 import com.qualcomm.robotcore.hardware.DcMotorEx;
 import com.qualcomm.robotcore.hardware.DcMotorSimple;
 import com.qualcomm.robotcore.hardware.HardwareMap;
-import com.qualcomm.robotcore.hardware.Servo;
 
 import org.apache.commons.collections4.queue.CircularFifoQueue;
 
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.function.UnaryOperator;
 
 public class IntakeModule implements Module, Telemeter {
     public static final double INTAKE_RIGHT_EXTENDED_POS = 0.0168;
@@ -36,14 +40,15 @@ public class IntakeModule implements Module, Telemeter {
     private static final double HOLD_POWER = 0.8;
 
     // states
-    public volatile double intakePower;
-    public volatile IntakePosition targetIntakePosition;
+    private final CommandChannel<IntakeCommand> commands = new CommandChannel<>(new IntakeCommand(0, IntakePosition.RETRACTED));
+    // the command being carried out;  taken at the start of every update
+    private volatile IntakeCommand command = commands.get();
 
     public boolean enableAutoExtend = true;
 
-    private final DcMotorEx intakeMotor;
-    private final Servo extenderLeft;
-    private final Servo extenderRight;
+    private final CachedMotor intakeMotor;
+    private final CachedServo extenderLeft;
+    private final CachedServo extenderRight;
     private final OuttakeModule outtakeModule;
 
     private final AnalogDistance distanceSensor;
@@ -54,7 +59,7 @@ public class IntakeModule implements Module, Telemeter {
     private boolean wasDoneTransitioning;
     public boolean retracted = false;
 
-    private boolean hasMineral;
+    private volatile boolean hasMineral; // read by the LED module on the other hub's lane
 
     public volatile boolean newMineral = false;
     CircularFifoQueue<Double> distanceReadings = new CircularFifoQueue<>(15);
@@ -65,19 +70,19 @@ public class IntakeModule implements Module, Telemeter {
         STAY_RETRACTED
     }
 
-    public IntakeModule(HardwareMap hardwareMap, OuttakeModule outtakeModule) {
+    public IntakeModule(HardwareMap hardwareMap, OuttakeModule outtakeModule, HubData hubData) {
         this.outtakeModule = outtakeModule;
 
-        this.extenderLeft = hardwareMap.servo.get("extenderLeft");
-        this.extenderRight = hardwareMap.servo.get("extenderRight");
-        this.intakeMotor = (DcMotorEx) hardwareMap.dcMotor.get("intake");
+        this.extenderLeft = new CachedServo(hardwareMap.servo.get("extenderLeft"));
+        this.extenderRight = new CachedServo(hardwareMap.servo.get("extenderRight"));
 
+        DcMotorEx intakeMotor = (DcMotorEx) hardwareMap.dcMotor.get("intake");
         intakeMotor.setDirection(DcMotorSimple.Direction.REVERSE);
+        this.intakeMotor = new CachedMotor(intakeMotor);
 
-        this.distanceSensor = new AnalogDistance(hardwareMap.get(AnalogInput.class, "distance"));
+        this.distanceSensor = new AnalogDistance(hardwareMap.get(AnalogInput.class, "distance"), hubData, HubData.Hub.EXPANSION);
 
-        this.targetIntakePosition = IntakePosition.RETRACTED;
-        this.transitionTo = targetIntakePosition;
+        this.transitionTo = command.targetIntakePosition;
         this.transitionTime = 0;
         this.wasDoneTransitioning = true;
 
@@ -85,35 +90,36 @@ public class IntakeModule implements Module, Telemeter {
     }
 
     public void update() {
+        command = commands.take();
+
         // listen for when we just finished retracting to command the outtake to extend.
         if (atTargetPosition() && !wasDoneTransitioning) {
             if (transitionTo == IntakePosition.RETRACTED && enableAutoExtend) {
-                outtakeModule.targetState = OuttakeModule.OuttakeState.EXTEND;
+                outtakeModule.command(outtakeCommand -> outtakeCommand.withState(OuttakeModule.OuttakeState.EXTEND));
             }
             wasDoneTransitioning = true;
         }
 
         // listen for state change
-        if (targetIntakePosition != transitionTo) {
-            transitionIntake(targetIntakePosition);
+        if (command.targetIntakePosition != transitionTo) {
+            transitionIntake(command.targetIntakePosition);
         }
 
         hasMineral = mineralInIntake();
         // if we're done transitioning, there are a handful of listeners that apply
         if (!transitioning()) {
             // if we're done retracting but trying to intake
-            if (intakePower > 0 && transitionTo == IntakePosition.RETRACTED) {
-                targetIntakePosition = IntakePosition.EXTENDED;
-                transitionIntake(targetIntakePosition);
+            if (command.intakePower > 0 && transitionTo == IntakePosition.RETRACTED) {
+                selfCommand(latest -> latest.withPosition(IntakePosition.EXTENDED));
+                transitionIntake(command.targetIntakePosition);
             }
 
             // if we're done extending and there's a mineral in the intake
             if (hasMineral && transitionTo == IntakePosition.EXTENDED) {
                 newMineral = true;
                 if (outtakeModule.collapsed()) {
-                    intakePower = 0;
-                    targetIntakePosition = IntakePosition.RETRACTED;
-                    transitionIntake(targetIntakePosition);
+                    selfCommand(latest -> latest.withPower(0).withPosition(IntakePosition.RETRACTED));
+                    transitionIntake(command.targetIntakePosition);
                 }
             }
         }
@@ -123,7 +129,7 @@ public class IntakeModule implements Module, Telemeter {
         if (transitionTo == IntakePosition.RETRACTED && !atTarget) {
             intakeMotor.setPower(HOLD_POWER);
         } else {
-            intakeMotor.setPower(intakePower);
+            intakeMotor.setPower(command.intakePower);
         }
 
         // set intake position
@@ -148,6 +154,34 @@ public class IntakeModule implements Module, Telemeter {
         }
     }
 
+    /**
+     * @return the latest command, which may not have been taken yet
+     */
+    public IntakeCommand getCommand() {
+        return commands.get();
+    }
+
+    /**
+     * Edits the latest command.  {@code edit} may run more than once, so it mustn't have side
+     * effects.
+     *
+     * @return the sequence number to pass to {@link #hasTakenEffect(long)}
+     */
+    public long command(UnaryOperator<IntakeCommand> edit) {
+        return commands.update(edit);
+    }
+
+    public boolean hasTakenEffect(long sequence) {
+        return commands.hasTakenEffect(sequence);
+    }
+
+    // changes the module makes to its own command go through the channel like anyone else's, and
+    // apply to the rest of this update
+    private void selfCommand(UnaryOperator<IntakeCommand> edit) {
+        commands.update(edit);
+        command = edit.apply(command);
+    }
+
     private void transitionIntake(IntakePosition position) {
         this.transitionTo = position;
 
@@ -171,7 +205,7 @@ public class IntakeModule implements Module, Telemeter {
     }
 
     public boolean atTargetPosition() {
-        return atPosition(targetIntakePosition);
+        return atPosition(command.targetIntakePosition);
     }
 
     public boolean hasMineral() {
@@ -212,7 +246,18 @@ public class IntakeModule implements Module, Telemeter {
     }
 
     private boolean intakeSpinning() {
-        return abs(intakePower) > .5;
+        return abs(command.intakePower) > .5;
+    }
+
+    @Override
+    public HubData.Hub getHub() {
+        return HubData.Hub.EXPANSION;
+    }
+
+    @Override
+    public boolean needsExpansionHubData() {
+        // the distance sensor only matters while we could be picking something up
+        return commands.get().intakePower != 0 || transitionTo == IntakePosition.EXTENDED || transitioning();
     }
 
     public boolean isOn() {
@@ -223,7 +268,7 @@ public class IntakeModule implements Module, Telemeter {
     public ArrayList<String> getTelemetryData() {
         ArrayList<String> data = new ArrayList<>();
 
-        data.add(String.format(Locale.US, "Intake position:  %s", targetIntakePosition));
+        data.add(String.format(Locale.US, "Intake position:  %s", command.targetIntakePosition));
         data.add("At pos? " + atTargetPosition());
 
         data.add("--");
@@ -15,7 +15,7 @@ public class IntakePowerAction extends Action {
     public void tick() {
         super.tick();
 
-        intakeModule.intakePower = this.power;
+        intakeModule.command(command -> command.withPower(power));
 
         this.completed = true;
     }
@@ -6,6 +6,7 @@ import com.kuriosityrobotics.firstforward.robot.Robot;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
 import com.kuriosityrobotics.firstforward.robot.modules.intake.IntakeModule;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedBlinkin;
 import com.qualcomm.hardware.rev.RevBlinkinLedDriver;
 import com.qualcomm.hardware.rev.RevBlinkinLedDriver.BlinkinPattern;
 
@@ -27,10 +28,10 @@ public class LEDModule implements Module, Telemeter {
     IntakeModule intake;
 
     //servos
-    private final RevBlinkinLedDriver led;
+    private final CachedBlinkin led;
 
     public LEDModule(Robot robot) {
-        led = robot.getHardwareMap().get(RevBlinkinLedDriver.class, "LED");
+        led = new CachedBlinkin(robot.getHardwareMap().get(RevBlinkinLedDriver.class, "LED"));
 
         this.robot = robot;
         this.intake = robot.getIntakeModule();
@@ -50,6 +51,22 @@ public class LEDModule implements Module, Telemeter {
         }
     }
 
+    @Override
+    public Priority getPriority() {
+        return Priority.LOW;
+    }
+
+    @Override
+    public double getMaxFrequency() {
+        // nobody can see a pattern change faster than this
+        return 10;
+    }
+
+    @Override
+    public boolean needsExpansionHubData() {
+        return false;
+    }
+
     @Override
     public boolean isOn() {
         return true;
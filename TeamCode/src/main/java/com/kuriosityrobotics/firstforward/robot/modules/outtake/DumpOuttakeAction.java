@@ -19,11 +19,11 @@ class DumpOuttakeAction extends Action {
     public void tick() {
         super.tick();
 
-        outtakeModule.targetState = DUMP;
+        outtakeModule.command(command -> command.withState(DUMP));
 
         if (outtakeModule.atState(DUMP)) {
             completed = true;
-            outtakeModule.targetState = COLLAPSE;
+            outtakeModule.command(command -> command.withState(COLLAPSE));
         }
     }
 }
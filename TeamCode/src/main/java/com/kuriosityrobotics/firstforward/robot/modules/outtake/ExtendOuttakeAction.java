@@ -17,16 +17,16 @@ class ExtendOuttakeAction extends Action {
     public void tick() {
         super.tick();
 
-        if (slideLevel == OuttakeModule.VerticalSlideLevel.DOWN_NO_EXTEND) {
-            outtakeModule.targetLinkage = OuttakeModule.LinkagePosition.RETRACT;
-        } else {
-            outtakeModule.targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-        }
-        outtakeModule.targetPivot = OuttakeModule.PivotPosition.OUT;
-        outtakeModule.targetTurret = turretPosition;
-        outtakeModule.targetSlideLevel = slideLevel;
-        outtakeModule.targetState = OuttakeModule.OuttakeState.EXTEND;
+        OuttakeModule.LinkagePosition linkage = slideLevel == OuttakeModule.VerticalSlideLevel.DOWN_NO_EXTEND
+                ? OuttakeModule.LinkagePosition.RETRACT
+                : OuttakeModule.LinkagePosition.EXTEND;
+        long sequence = outtakeModule.command(command -> command
+                .withLinkage(linkage)
+                .withPivot(OuttakeModule.PivotPosition.OUT)
+                .withTurret(turretPosition)
+                .withSlideLevel(slideLevel)
+                .withState(OuttakeModule.OuttakeState.EXTEND));
 
-        this.completed = outtakeModule.atTargetState();
+        this.completed = outtakeModule.hasTakenEffect(sequence) && outtakeModule.atTargetState();
     }
 }
@@ -0,0 +1,72 @@
+package com.kuriosityrobotics.firstforward.robot.modules.outtake;
+
+import java.util.function.UnaryOperator;
+
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule.LinkagePosition;
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule.OuttakeState;
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule.PivotPosition;
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule.TurretPosition;
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule.VerticalSlideLevel;
+
+/**
+ * Everything the outtake is told to do, as one immutable value.  The {@code with} methods return
+ * this command if nothing would change.
+ */
+public final class OuttakeCommand {
+    public final OuttakeState targetState;
+    public final VerticalSlideLevel targetSlideLevel;
+    public final TurretPosition targetTurret;
+    public final PivotPosition targetPivot;
+    public final LinkagePosition targetLinkage;
+
+    public OuttakeCommand(OuttakeState targetState, VerticalSlideLevel targetSlideLevel, TurretPosition targetTurret, PivotPosition targetPivot, LinkagePosition targetLinkage) {
+        this.targetState = targetState;
+        this.targetSlideLevel = targetSlideLevel;
+        this.targetTurret = targetTurret;
+        this.targetPivot = targetPivot;
+        this.targetLinkage = targetLinkage;
+    }
+
+    /**
+     * For producers that decide what to do from one command and publish once they're done.
+     *
+     * @return an edit making the changes between {@code from} and {@code to}, and leaving
+     * everything else as the latest command has it by then
+     */
+    public static UnaryOperator<OuttakeCommand> changes(OuttakeCommand from, OuttakeCommand to) {
+        return latest -> {
+            OuttakeCommand command = latest;
+            if (to.targetState != from.targetState)
+                command = command.withState(to.targetState);
+            if (to.targetSlideLevel != from.targetSlideLevel)
+                command = command.withSlideLevel(to.targetSlideLevel);
+            if (to.targetTurret != from.targetTurret)
+                command = command.withTurret(to.targetTurret);
+            if (to.targetPivot != from.targetPivot)
+                command = command.withPivot(to.targetPivot);
+            if (to.targetLinkage != from.targetLinkage)
+                command = command.withLinkage(to.targetLinkage);
+            return command;
+        };
+    }
+
+    public OuttakeCommand withState(OuttakeState targetState) {
+        return targetState == this.targetState ? this : new OuttakeCommand(targetState, targetSlideLevel, targetTurret, targetPivot, targetLinkage);
+    }
+
+    public OuttakeCommand withSlideLevel(VerticalSlideLevel targetSlideLevel) {
+        return targetSlideLevel == this.targetSlideLevel ? this : new OuttakeCommand(targetState, targetSlideLevel, targetTurret, targetPivot, targetLinkage);
+    }
+
+    public OuttakeCommand withTurret(TurretPosition targetTurret) {
+        return targetTurret == this.targetTurret ? this : new OuttakeCommand(targetState, targetSlideLevel, targetTurret, targetPivot, targetLinkage);
+    }
+
+    public OuttakeCommand withPivot(PivotPosition targetPivot) {
+        return targetPivot == this.targetPivot ? this : new OuttakeCommand(targetState, targetSlideLevel, targetTurret, targetPivot, targetLinkage);
+    }
+
+    public OuttakeCommand withLinkage(LinkagePosition targetLinkage) {
+        return targetLinkage == this.targetLinkage ? this : new OuttakeCommand(targetState, targetSlideLevel, targetTurret, targetPivot, targetLinkage);
+    }
+}
@@ -11,29 +11,35 @@ import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.modules.CommandChannel;
 import com.kuriosityrobotics.firstforward.robot.modules.Module;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
 import com.kuriosityrobotics.firstforward.robot.util.math.Point;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedMotor;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.CachedServo;
 import com.qualcomm.robotcore.hardware.DcMotor;
 import com.qualcomm.robotcore.hardware.DcMotorEx;
 import com.qualcomm.robotcore.hardware.DcMotorSimple;
 import com.qualcomm.robotcore.hardware.HardwareMap;
 import com.qualcomm.robotcore.hardware.PIDFCoefficients;
-import com.qualcomm.robotcore.hardware.Servo;
 import com.qualcomm.robotcore.util.Range;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 public class OuttakeModule implements Module, Telemeter {
     LocationProvider locationProvider;
 
     // states
-    public VerticalSlideLevel targetSlideLevel = VerticalSlideLevel.TOP;
-    public TurretPosition targetTurret = TurretPosition.STRAIGHT;
-    public LinkagePosition targetLinkage = LinkagePosition.EXTEND;
-    public PivotPosition targetPivot = PivotPosition.OUT;
-    public OuttakeState targetState;
+    private final CommandChannel<OuttakeCommand> commands = new CommandChannel<>(new OuttakeCommand(
+            COLLAPSE, VerticalSlideLevel.TOP, TurretPosition.STRAIGHT, PivotPosition.OUT, LinkagePosition.EXTEND));
+    // the command being carried out;  taken at the start of every update
+    private volatile OuttakeCommand command = commands.get();
+    // the collapse command skipToCollapse() published, and the last one that was skipped to
+    private volatile long skipToCollapseSequence = -1;
+    private long skippedToCollapseSequence = -1;
 
     private OuttakeState currentState;
 
@@ -125,15 +131,20 @@ public class OuttakeModule implements Module, Telemeter {
         }
     }
 
+    private void setSlideTargetPosition(int position) {
+        slide.setTargetPosition(position);
+        slide2.setTargetPosition(position);
+    }
+
     private boolean phaseComplete() {
         long currentTime = System.currentTimeMillis();
         boolean timerComplete = currentTime >= transitionTime + currentState.completionTime;
         boolean turretTimerComplete = currentTime >= transitionTime + currentState.completionTime + TURRET_TIME;
-        boolean slidesAtTarget = abs(slide2.getCurrentPosition() - slide2.getTargetPosition()) < 50;
+        boolean slidesAtTarget = abs(hubData.getCurrentPosition(HubData.Hub.EXPANSION, slide2.getMotor()) - slide2.getTargetPosition()) < 50;
 
         switch (currentState) {
             case RAISE:
-                if (targetSlideLevel == VerticalSlideLevel.TOP || targetSlideLevel == VerticalSlideLevel.TOP_TOP) {
+                if (command.targetSlideLevel == VerticalSlideLevel.TOP || command.targetSlideLevel == VerticalSlideLevel.TOP_TOP) {
                     return slidesAtTarget;
                 } else {
                     return true;
@@ -141,19 +152,19 @@ public class OuttakeModule implements Module, Telemeter {
             case COLLAPSE:
                 return timerComplete && slidesAtTarget;
             case EXTEND:
-                if (targetTurret == TurretPosition.STRAIGHT) {
+                if (command.targetTurret == TurretPosition.STRAIGHT) {
                     return true;
                 } else {
                     return timerComplete;
                 }
             case RETRACT:
-                if (targetSlideLevel == VerticalSlideLevel.TOP || targetSlideLevel == VerticalSlideLevel.TOP_TOP || targetSlideLevel == VerticalSlideLevel.CAP) {
+                if (command.targetSlideLevel == VerticalSlideLevel.TOP || command.targetSlideLevel == VerticalSlideLevel.TOP_TOP || command.targetSlideLevel == VerticalSlideLevel.CAP) {
                     return true;
                 } else {
                     return timerComplete;
                 }
             case TURRET_IN:
-                if (targetTurret == TurretPosition.STRAIGHT)
+                if (command.targetTurret == TurretPosition.STRAIGHT)
                     return true;
                 else
                     return turretTimerComplete;
@@ -169,49 +180,52 @@ public class OuttakeModule implements Module, Telemeter {
     }
 
     //servos
-    private final Servo linkage;
-    private final Servo pivot;
-    private final Servo clamp;
-    private final Servo turret;
+    private final CachedServo linkage;
+    private final CachedServo pivot;
+    private final CachedServo clamp;
+    private final CachedServo turret;
 
     //motors
-    private final DcMotorEx slide;
-    private final DcMotorEx slide2;
+    private final CachedMotor slide;
+    private final CachedMotor slide2;
+    private final HubData hubData;
 
     // helpers
     private long transitionTime;
 
-    public OuttakeModule(LocationProvider locationProvider, HardwareMap hardwareMap) {
+    public OuttakeModule(LocationProvider locationProvider, HardwareMap hardwareMap, HubData hubData) {
         this.locationProvider = locationProvider;
+        this.hubData = hubData;
+
+        linkage = new CachedServo(hardwareMap.servo.get("outtakeLinkage"));
+        pivot = new CachedServo(hardwareMap.servo.get("outtakePivot"));
+        clamp = new CachedServo(hardwareMap.servo.get("outtakeClamp"));
+        turret = new CachedServo(hardwareMap.servo.get("outtakeTurret"));
 
-        linkage = hardwareMap.servo.get("outtakeLinkage");
-        pivot = hardwareMap.servo.get("outtakePivot");
-        clamp = hardwareMap.servo.get("outtakeClamp");
-        turret = hardwareMap.servo.get("outtakeTurret");
+        DcMotorEx slideMotor = (DcMotorEx) hardwareMap.dcMotor.get("lift");
+        DcMotorEx slide2Motor = (DcMotorEx) hardwareMap.dcMotor.get("otherLift");
 
-        slide = (DcMotorEx) hardwareMap.dcMotor.get("lift");
-        slide2 = (DcMotorEx) hardwareMap.dcMotor.get("otherLift");
+        slideMotor.setPIDFCoefficients(DcMotor.RunMode.RUN_USING_ENCODER, new PIDFCoefficients(15, 0, 0, 20));
+        slide2Motor.setPIDFCoefficients(DcMotor.RunMode.RUN_USING_ENCODER, new PIDFCoefficients(15, 0, 0, 20));
+
+        slideMotor.setDirection(DcMotorSimple.Direction.FORWARD); // Set to REVERSE if using AndyMark motors
+        slide2Motor.setDirection(DcMotorSimple.Direction.REVERSE);// Set to FORWARD if using AndyMark motors
+
+        slide = new CachedMotor(slideMotor);
+        slide2 = new CachedMotor(slide2Motor);
 
         slide.setMode(DcMotor.RunMode.STOP_AND_RESET_ENCODER);
         slide2.setMode(DcMotor.RunMode.STOP_AND_RESET_ENCODER);
 
-        slide.setTargetPosition(0);
-        slide2.setTargetPosition(0);
+        setSlideTargetPosition(0);
 
         slide.setMode(DcMotor.RunMode.RUN_TO_POSITION);
         slide2.setMode(DcMotor.RunMode.RUN_TO_POSITION);
 
-        slide.setPIDFCoefficients(DcMotor.RunMode.RUN_USING_ENCODER, new PIDFCoefficients(15, 0, 0, 20));
-        slide2.setPIDFCoefficients(DcMotor.RunMode.RUN_USING_ENCODER, new PIDFCoefficients(15, 0, 0, 20));
-
-        slide.setDirection(DcMotorSimple.Direction.FORWARD); // Set to REVERSE if using AndyMark motors
-        slide2.setDirection(DcMotorSimple.Direction.REVERSE);// Set to FORWARD if using AndyMark motors
-
         clamp.setPosition(CLAMP_INTAKE);
         pivot.setPosition(PivotPosition.IN.position);
         linkage.setPosition(LinkagePosition.RETRACT.position);
 
-        this.targetState = COLLAPSE;
         this.currentState = COLLAPSE;
     }
 
@@ -223,21 +237,52 @@ public class OuttakeModule implements Module, Telemeter {
         slide2.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
     }
 
+    /**
+     * @return the latest command, which may not have been taken yet
+     */
+    public OuttakeCommand getCommand() {
+        return commands.get();
+    }
+
+    /**
+     * Edits the latest command.  {@code edit} may run more than once, so it mustn't have side
+     * effects.
+     *
+     * @return the sequence number to pass to {@link #hasTakenEffect(long)}
+     */
+    public long command(UnaryOperator<OuttakeCommand> edit) {
+        return commands.update(edit);
+    }
+
+    public boolean hasTakenEffect(long sequence) {
+        return commands.hasTakenEffect(sequence);
+    }
+
     public void skipToCollapse() {
-        if (targetState == COLLAPSE) {
+        if (commands.get().targetState == COLLAPSE) {
             return;
         }
 
-        transitionTime = 0;
-        this.targetState = COLLAPSE;
-        this.currentState = DUMP;
+        skipToCollapseSequence = commands.update(latest -> latest.withState(COLLAPSE));
     }
 
     String lastRan = "";
 
     public void update() {
+        command = commands.take();
+
+        // skip once that collapse has been taken, unless something else has been commanded since
+        long skipSequence = skipToCollapseSequence;
+        if (skipSequence != skippedToCollapseSequence && commands.hasTakenEffect(skipSequence)) {
+            skippedToCollapseSequence = skipSequence;
+            if (command.targetState == COLLAPSE) {
+                transitionTime = 0;
+                this.currentState = DUMP;
+            }
+        }
+
         boolean skipState = currentState == COLLAPSE;
-        if ((phaseComplete() || skipState) && currentState != targetState) {
+        if ((phaseComplete() || skipState) && currentState != command.targetState) {
             lastRan = currentState.name();
 
             currentState = OuttakeState.values()[currentState.ordinal() + 1 >= OuttakeState.values().length ? 0 : currentState.ordinal() + 1];
@@ -251,12 +296,11 @@ public class OuttakeModule implements Module, Telemeter {
                     linkage.setPosition(LinkagePosition.PARTIAL_EXTEND.position);
                     clamp.setPosition(CLAMP_CLAMP);
 
-                    slide.setTargetPosition(targetSlideLevel.position);
-                    slide2.setTargetPosition(targetSlideLevel.position);
+                    setSlideTargetPosition(command.targetSlideLevel.position);
 
                     break;
                 case EXTEND:
-                    pivot.setPosition(targetPivot.position);
+                    pivot.setPosition(command.targetPivot.position);
                     break;
                 case DUMP:
                     clamp.setPosition(CLAMP_RELEASE);
@@ -273,8 +317,7 @@ public class OuttakeModule implements Module, Telemeter {
                     pivot.setPosition(PivotPosition.IN.position);
                     linkage.setPosition(LinkagePosition.RETRACT.position);
 
-                    slide.setTargetPosition(VerticalSlideLevel.DOWN.position);
-                    slide2.setTargetPosition(VerticalSlideLevel.DOWN.position);
+                    setSlideTargetPosition(VerticalSlideLevel.DOWN.position);
                     break;
             }
 
@@ -300,8 +343,7 @@ public class OuttakeModule implements Module, Telemeter {
             }
         }
         else {
-            slide.setTargetPosition(targetSlideLevel.position);
-            slide2.setTargetPosition(targetSlideLevel.position);
+            setSlideTargetPosition(command.targetSlideLevel.position);
 
             slide.setMode(DcMotor.RunMode.RUN_TO_POSITION);
             slide2.setMode(DcMotor.RunMode.RUN_TO_POSITION);
@@ -311,13 +353,13 @@ public class OuttakeModule implements Module, Telemeter {
         }
 
         if (currentState == EXTEND) {
-            linkage.setPosition(targetLinkage.position);
+            linkage.setPosition(command.targetLinkage.position);
 
             if (atTargetState()) {
-                pivot.setPosition(targetPivot.position);
+                pivot.setPosition(command.targetPivot.position);
 
-                double targetTurretServoPosition = targetTurret.position;
-                if (targetTurret == TurretPosition.ALLIANCE_LOCK) {
+                double targetTurretServoPosition = command.targetTurret.position;
+                if (command.targetTurret == TurretPosition.ALLIANCE_LOCK) {
                     Pose robotPose = locationProvider.getPose();
                     Pose turretPose = new Pose(
                             robotPose.x - EXTENDED_TURRET_OFFSET_Y * Math.sin(robotPose.heading),
@@ -334,7 +376,7 @@ public class OuttakeModule implements Module, Telemeter {
                 }
                 turret.setPosition(targetTurretServoPosition);
 
-                if (targetSlideLevel == VerticalSlideLevel.CAP_DROP) {
+                if (command.targetSlideLevel == VerticalSlideLevel.CAP_DROP) {
                     clamp.setPosition(CLAMP_RELEASE);
                 } else {
                     clamp.setPosition(CLAMP_CLAMP);
@@ -347,8 +389,12 @@ public class OuttakeModule implements Module, Telemeter {
         return TurretPosition.STRAIGHT.position + turretHeading * (TurretPosition.RIGHT.position - TurretPosition.LEFT.position) / Math.PI;
     }
 
+    /**
+     * @return whether the command being carried out is done;  a newly published command may not
+     * have been taken yet (see {@link #hasTakenEffect(long)})
+     */
     public boolean atTargetState() {
-        return atState(targetState);
+        return atState(command.targetState);
     }
 
     public boolean atState(OuttakeState state) {
@@ -363,6 +409,17 @@ public class OuttakeModule implements Module, Telemeter {
         return this.currentState;
     }
 
+    @Override
+    public HubData.Hub getHub() {
+        return HubData.Hub.EXPANSION;
+    }
+
+    @Override
+    public boolean needsExpansionHubData() {
+        // the slide encoders only matter until we're back down
+        return commands.get().targetState != COLLAPSE || !collapsed();
+    }
+
     @Override
     public boolean isOn() {
         return true;
@@ -376,13 +433,13 @@ public class OuttakeModule implements Module, Telemeter {
     @Override
     public List<String> getTelemetryData() {
         return new ArrayList<>() {{
-            add("Target State: " + targetState);
+            add("Target State: " + command.targetState);
             add("State:  " + currentState);
-            add("slideLevel: " + targetSlideLevel.name());
-            add("Turret: " + targetTurret.name());
-            add("Linkage: " + targetLinkage.name());
-            add("Slide: " + slide.getCurrentPosition());
-            add("Slide 2: " + slide2.getCurrentPosition());
+            add("slideLevel: " + command.targetSlideLevel.name());
+            add("Turret: " + command.targetTurret.name());
+            add("Linkage: " + command.targetLinkage.name());
+            add("Slide: " + hubData.getCurrentPosition(HubData.Hub.EXPANSION, slide.getMotor()));
+            add("Slide 2: " + hubData.getCurrentPosition(HubData.Hub.EXPANSION, slide2.getMotor()));
             add("Slide target: " + slide.getTargetPosition());
             add("Slide 2 target: " + slide2.getTargetPosition());
         }};
@@ -5,6 +5,7 @@ import static com.kuriosityrobotics.firstforward.robot.util.Constants.OpModes.JO
 
 import com.kuriosityrobotics.firstforward.robot.Robot;
 import com.kuriosityrobotics.firstforward.robot.modules.intake.IntakeModule;
+import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeCommand;
 import com.kuriosityrobotics.firstforward.robot.modules.outtake.OuttakeModule;
 import com.kuriosityrobotics.firstforward.robot.opmodes.auto.AutoPaths;
 import com.kuriosityrobotics.firstforward.robot.util.Button;
@@ -70,13 +71,18 @@ public class TeleOp extends LinearOpMode {
             robot.getIntakeModule().retracted = false;
         }
 
-        robot.getIntakeModule().intakePower = setPower && !robot.getIntakeModule().retracted
+        double intakePower = setPower && !robot.getIntakeModule().retracted
                 ? Math.signum(gamepad2.left_stick_y)
                 : 0;
+        boolean retract = retractButton.isSelected(gamepad2.a);
 
-        if (retractButton.isSelected(gamepad2.a)) {
-            robot.getIntakeModule().targetIntakePosition = IntakeModule.IntakePosition.RETRACTED;
-        }
+        robot.getIntakeModule().command(command -> {
+            command = command.withPower(intakePower);
+            if (retract) {
+                command = command.withPosition(IntakeModule.IntakePosition.RETRACTED);
+            }
+            return command;
+        });
 
         wasSet = setPower;
 
@@ -84,12 +90,16 @@ public class TeleOp extends LinearOpMode {
     }
 
     private void updateOuttakeStates() {
+        // decide from one command, and only publish the changes once the whole thing's decided
+        OuttakeCommand startCommand = robot.getOuttakeModule().getCommand();
+        OuttakeCommand command = startCommand;
+
         if (xG1.isSelected(gamepad1.x)) {
             robot.getOuttakeModule().resetSlides();
         }
 
-        if ((gamepad1.right_bumper || gamepad2.right_bumper) && robot.getOuttakeModule().targetState != OuttakeModule.OuttakeState.COLLAPSE)
-            robot.getOuttakeModule().targetState = OuttakeModule.OuttakeState.COLLAPSE;
+        if ((gamepad1.right_bumper || gamepad2.right_bumper) && command.targetState != OuttakeModule.OuttakeState.COLLAPSE)
+            command = command.withState(OuttakeModule.OuttakeState.COLLAPSE);
 
         boolean up = dpad_up.isSelected(gamepad2.dpad_up),
                 right = gamepad2.dpad_right,
@@ -99,30 +109,30 @@ public class TeleOp extends LinearOpMode {
                 b = gamepad2.b,
                 lTrigger = gamepad2.left_trigger > 0;
         if (up || left || right) {
-            robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-            robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.OUT;
+            command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
+            command = command.withPivot(OuttakeModule.PivotPosition.OUT);
 
             lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
 
             if (up) {
-                if (robot.getOuttakeModule().targetState != OuttakeModule.OuttakeState.RAISE && robot.getOuttakeModule().targetState != OuttakeModule.OuttakeState.EXTEND) {
-                    robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.TOP;
+                if (command.targetState != OuttakeModule.OuttakeState.RAISE && command.targetState != OuttakeModule.OuttakeState.EXTEND) {
+                    command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.TOP);
                 } else {
-                    if (robot.getOuttakeModule().targetSlideLevel == OuttakeModule.VerticalSlideLevel.TOP) {
-                        robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.TOP_TOP;
+                    if (command.targetSlideLevel == OuttakeModule.VerticalSlideLevel.TOP) {
+                        command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.TOP_TOP);
                     } else {
-                        robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.TOP;
+                        command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.TOP);
                     }
                 }
             } else {
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.MID;
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.MID);
             }
 
-            if (robot.getOuttakeModule().targetState != OuttakeModule.OuttakeState.EXTEND) {
-                robot.getOuttakeModule().targetState = OuttakeModule.OuttakeState.RAISE;
+            if (command.targetState != OuttakeModule.OuttakeState.EXTEND) {
+                command = command.withState(OuttakeModule.OuttakeState.RAISE);
             }
         } else if (y) {
-            if (robot.getOuttakeModule().targetState == OuttakeModule.OuttakeState.EXTEND) {
+            if (command.targetState == OuttakeModule.OuttakeState.EXTEND) {
                 if (lastTurretTarget == OuttakeModule.TurretPosition.STRAIGHT) {
                     lastTurretTarget = OuttakeModule.TurretPosition.ALLIANCE_LOCK;
                 } else {
@@ -131,16 +141,16 @@ public class TeleOp extends LinearOpMode {
             } else {
                 lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
 
-                robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.OUT;
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.TOP;
+                command = command.withPivot(OuttakeModule.PivotPosition.OUT);
+                command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.TOP);
 
-                robot.getOuttakeModule().targetState = OuttakeModule.OuttakeState.EXTEND;
+                command = command.withState(OuttakeModule.OuttakeState.EXTEND);
             }
         } else if (x || b) {
-            robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.RETRACT;
-            robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.OUT;
-            robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.SHARED;
+            command = command.withLinkage(OuttakeModule.LinkagePosition.RETRACT);
+            command = command.withPivot(OuttakeModule.PivotPosition.OUT);
+            command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.SHARED);
 
             if (x) {
                 lastTurretTarget = OuttakeModule.TurretPosition.SHARED_LEFT;
@@ -154,24 +164,30 @@ public class TeleOp extends LinearOpMode {
 
         if (lastTurretTarget == OuttakeModule.TurretPosition.SHARED_LEFT || lastTurretTarget == OuttakeModule.TurretPosition.SHARED_RIGHT) {
             if (lTrigger) {
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
+                command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
 
                 if (lastTurretTarget == OuttakeModule.TurretPosition.SHARED_LEFT) {
-                    robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.SHARED_LEFT_MORE_EXTREME_ANGLE;
+                    command = command.withTurret(OuttakeModule.TurretPosition.SHARED_LEFT_MORE_EXTREME_ANGLE);
                 } else if (lastTurretTarget == OuttakeModule.TurretPosition.SHARED_RIGHT) {
-                    robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.SHARED_RIGHT_MORE_EXTREME_ANGLE;
+                    command = command.withTurret(OuttakeModule.TurretPosition.SHARED_RIGHT_MORE_EXTREME_ANGLE);
                 }
             } else {
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.RETRACT;
-                robot.getOuttakeModule().targetTurret = lastTurretTarget;
+                command = command.withLinkage(OuttakeModule.LinkagePosition.RETRACT);
+                command = command.withTurret(lastTurretTarget);
             }
         } else {
-            robot.getOuttakeModule().targetTurret = lastTurretTarget;
+            command = command.withTurret(lastTurretTarget);
         }
+
+        robot.getOuttakeModule().command(OuttakeCommand.changes(startCommand, command));
     }
 
     private void updateCapStates() {
-        if (robot.getOuttakeModule().targetState == OuttakeModule.OuttakeState.COLLAPSE) {
+        // decide from one command, and only publish the changes once the whole thing's decided
+        OuttakeCommand startCommand = robot.getOuttakeModule().getCommand();
+        OuttakeCommand command = startCommand;
+
+        if (command.targetState == OuttakeModule.OuttakeState.COLLAPSE) {
             capPicked = false;
             capLifted = false;
             capDropped = false;
@@ -179,46 +195,48 @@ public class TeleOp extends LinearOpMode {
 
         if (lBump.isSelected(gamepad2.left_bumper)) {
             if (!capPicked) {
-                robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.CAP_PICKUP;
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.RETRACT;
+                command = command.withPivot(OuttakeModule.PivotPosition.CAP_PICKUP);
+                command = command.withLinkage(OuttakeModule.LinkagePosition.RETRACT);
                 lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.DOWN;
+                command = command.withTurret(OuttakeModule.TurretPosition.STRAIGHT);
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.DOWN);
 
-                robot.getOuttakeModule().targetState = OuttakeModule.OuttakeState.EXTEND;
+                command = command.withState(OuttakeModule.OuttakeState.EXTEND);
 
                 capPicked = true;
             } else if (!capLifted) {
-                robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.CAP_DROP;
+                command = command.withPivot(OuttakeModule.PivotPosition.CAP_DROP);
                 lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.CAP;
+                command = command.withTurret(OuttakeModule.TurretPosition.STRAIGHT);
+                command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.CAP);
 
                 capLifted = true;
             } else if (!capDropped) {
-                robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.OUT;
+                command = command.withPivot(OuttakeModule.PivotPosition.OUT);
                 lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.CAP_DROP;
+                command = command.withTurret(OuttakeModule.TurretPosition.STRAIGHT);
+                command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.CAP_DROP);
 
                 capDropped = true;
             } else {
                 // done capping, collapse outtake and reset states to resume alliance hub
-                robot.getOuttakeModule().targetState = OuttakeModule.OuttakeState.COLLAPSE;
+                command = command.withState(OuttakeModule.OuttakeState.COLLAPSE);
 
-                robot.getOuttakeModule().targetPivot = OuttakeModule.PivotPosition.OUT;
+                command = command.withPivot(OuttakeModule.PivotPosition.OUT);
                 lastTurretTarget = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetTurret = OuttakeModule.TurretPosition.STRAIGHT;
-                robot.getOuttakeModule().targetLinkage = OuttakeModule.LinkagePosition.EXTEND;
-                robot.getOuttakeModule().targetSlideLevel = OuttakeModule.VerticalSlideLevel.TOP;
+                command = command.withTurret(OuttakeModule.TurretPosition.STRAIGHT);
+                command = command.withLinkage(OuttakeModule.LinkagePosition.EXTEND);
+                command = command.withSlideLevel(OuttakeModule.VerticalSlideLevel.TOP);
 
                 capPicked = false;
                 capLifted = false;
                 capDropped = false;
             }
         }
+
+        robot.getOuttakeModule().command(OuttakeCommand.changes(startCommand, command));
     }
 
     private void updateCarouselStates() {
@@ -90,15 +90,16 @@ public class AutoPaths {
                 new WayPoint(complete, new VelocityLock(0))
         }, 4);
 
-        robot.getIntakeModule().intakePower = 1;
+        robot.getIntakeModule().command(command -> command.withPower(1));
         robot.getIntakeModule().newMineral = false;
 
         long start = SystemClock.elapsedRealtime();
 
         while (robot.running() && !path.atEnd(robot)) {
             if (robot.getIntakeModule().hasMineral() || robot.getIntakeModule().newMineral) {
-                robot.getIntakeModule().targetIntakePosition = IntakeModule.IntakePosition.RETRACTED;
-                robot.getIntakeModule().intakePower = 0;
+                robot.getIntakeModule().command(command -> command
+                        .withPosition(IntakeModule.IntakePosition.RETRACTED)
+                        .withPower(0));
 
                 robot.getIntakeModule().newMineral = false;
                 break;
@@ -66,7 +66,7 @@ public class BlueCarousel extends LinearOpMode {
         }, true, 4);
 
         robot.followPath(toWobble);
-        robot.getIntakeModule().targetIntakePosition = IntakeModule.IntakePosition.STAY_RETRACTED;
+        robot.getIntakeModule().command(command -> command.withPosition(IntakeModule.IntakePosition.STAY_RETRACTED));
         robot.followPath(toCarousel);
         robot.followPath(toPark);
 
@@ -50,7 +50,7 @@ public class RedCarousel extends LinearOpMode {
         }, true, 4);
 
         robot.followPath(toWobble);
-        robot.getIntakeModule().targetIntakePosition = IntakeModule.IntakePosition.STAY_RETRACTED;
+        robot.getIntakeModule().command(command -> command.withPosition(IntakeModule.IntakePosition.STAY_RETRACTED));
         robot.followPath(toCarousel);
         robot.followPath(toPark);
 
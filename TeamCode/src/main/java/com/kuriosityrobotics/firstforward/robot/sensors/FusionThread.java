@@ -0,0 +1,44 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import android.util.Log;
+
+import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The only thread that runs filter maths while the robot is running.  Odometry, the IMU and
+ * Vuforia just queue their data on the filter and wake this thread up, and it fuses whatever has
+ * piled up since it last ran in one go.
+ */
+public class FusionThread implements Runnable {
+    // upper bound on how long to sleep, so the thread still notices when the opmode ends
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Robot robot;
+    private final ExtendedKalmanFilter filter;
+
+    public FusionThread(Robot robot, ExtendedKalmanFilter filter) {
+        this.robot = robot;
+        this.filter = filter;
+    }
+
+    @Override
+    public void run() {
+        filter.setFusionThread(Thread.currentThread());
+        try {
+            while (robot.running()) {
+                filter.fuse();
+                // a submit between fuse() and here leaves a permit, so nothing is missed
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+        } finally {
+            // the filter outlives the robot, so hand fusing back to whoever submits
+            filter.setFusionThread(null);
+            filter.fuse();
+        }
+        Log.v("FusionThread", "Exited due to opMode no longer being active.");
+    }
+}
@@ -0,0 +1,130 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import com.qualcomm.hardware.lynx.LynxModule;
+import com.qualcomm.robotcore.hardware.AnalogInput;
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorEx;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest {@link HubDataSnapshot} from each hub, published by the sensor thread after every
+ * bulk read.
+ * <p>
+ * The module thread pins one snapshot per hub at the start of each loop ({@link #beginLoop()}),
+ * so every module in that loop sees the same instant, including those it hands to another thread
+ * ({@link #joinLoop()}).  Other threads get the latest.  Reads that
+ * had to go to the hardware because nothing has been published yet, or that were served from an
+ * old snapshot, are counted.
+ */
+public class HubData {
+    public enum Hub {
+        CONTROL,
+        EXPANSION
+    }
+
+    // older than this and a read counts as stale
+    private static final long STALE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final HubDataSnapshot[] latest = new HubDataSnapshot[Hub.values().length];
+    private final long[] sequences = new long[Hub.values().length];
+
+    private final ThreadLocal<Boolean> loopThread = ThreadLocal.withInitial(() -> false);
+    private final HubDataSnapshot[] pinned = new HubDataSnapshot[Hub.values().length];
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+    private final AtomicLong uncachedReads = new AtomicLong();
+
+    /**
+     * Called by whichever thread bulk reads {@code hub}, right after it does.
+     *
+     * @param time {@link SensorClock} nanos of the read
+     */
+    public void publish(Hub hub, LynxModule.BulkData data, long time) {
+        var snapshot = new HubDataSnapshot(sequences[hub.ordinal()]++, time, data);
+        synchronized (latest) {
+            latest[hub.ordinal()] = snapshot;
+        }
+    }
+
+    /**
+     * Pins the latest snapshots for the calling thread's reads until the next call.
+     */
+    public void beginLoop() {
+        loopThread.set(true);
+        synchronized (latest) {
+            System.arraycopy(latest, 0, pinned, 0, pinned.length);
+        }
+    }
+
+    /**
+     * Makes the calling thread read the snapshots pinned by {@link #beginLoop()} too.  For
+     * threads that update some of the modules on the module thread's behalf;  they must only read
+     * while the module thread is waiting on them.
+     */
+    public void joinLoop() {
+        loopThread.set(true);
+    }
+
+    /**
+     * @return the pinned snapshot if called from a module loop thread, otherwise the latest.  Null
+     * if the hub hasn't been read yet.
+     */
+    public HubDataSnapshot get(Hub hub) {
+        if (loopThread.get())
+            return pinned[hub.ordinal()];
+
+        synchronized (latest) {
+            return latest[hub.ordinal()];
+        }
+    }
+
+    private HubDataSnapshot read(Hub hub) {
+        reads.incrementAndGet();
+
+        var snapshot = get(hub);
+        if (snapshot == null)
+            uncachedReads.incrementAndGet();
+        else if (SensorClock.nanos() - snapshot.getTime() > STALE_NANOS)
+            staleReads.incrementAndGet();
+        return snapshot;
+    }
+
+    public int getCurrentPosition(Hub hub, DcMotor motor) {
+        var snapshot = read(hub);
+        return snapshot == null ? motor.getCurrentPosition() : snapshot.getCurrentPosition(motor);
+    }
+
+    public double getVelocity(Hub hub, DcMotorEx motor) {
+        var snapshot = read(hub);
+        return snapshot == null ? motor.getVelocity() : snapshot.getVelocity(motor);
+    }
+
+    /**
+     * @param port the input's port, from {@link HubDataSnapshot#portOf}.  If it's unknown (-1) the
+     *             input is read directly.
+     */
+    public double getAnalogInputVoltage(Hub hub, AnalogInput input, int port) {
+        var snapshot = port == -1 ? null : read(hub);
+        if (snapshot == null) {
+            if (port == -1)
+                uncachedReads.incrementAndGet();
+            return input.getVoltage();
+        }
+        return snapshot.getAnalogInputVoltage(port);
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getStaleReads() {
+        return staleReads.get();
+    }
+
+    public long getUncachedReads() {
+        return uncachedReads.get();
+    }
+}
@@ -0,0 +1,106 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import com.qualcomm.hardware.lynx.LynxModule;
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorSimple;
+import com.qualcomm.robotcore.hardware.HardwareDevice;
+import com.qualcomm.robotcore.hardware.configuration.typecontainers.MotorConfigurationType;
+
+import org.firstinspires.ftc.robotcore.external.navigation.Rotation;
+
+/**
+ * Everything one bulk read returned from one hub, so readers see values from a single instant.
+ * Immutable;  a new one is published with every bulk read.
+ */
+public final class HubDataSnapshot {
+    private static final int MOTORS = 4;
+    private static final int ANALOG_INPUTS = 4;
+    private static final int DIGITAL_CHANNELS = 8;
+
+    private final long sequence;
+    private final long time;
+    private final int[] positions = new int[MOTORS];
+    private final int[] velocities = new int[MOTORS];
+    private final double[] analogVoltages = new double[ANALOG_INPUTS];
+    private final boolean[] digitalStates = new boolean[DIGITAL_CHANNELS];
+
+    HubDataSnapshot(long sequence, long time, LynxModule.BulkData data) {
+        this.sequence = sequence;
+        this.time = time;
+
+        for (int i = 0; i < MOTORS; i++) {
+            positions[i] = data.getMotorCurrentPosition(i);
+            velocities[i] = data.getMotorVelocity(i);
+        }
+        for (int i = 0; i < ANALOG_INPUTS; i++)
+            analogVoltages[i] = data.getAnalogInputVoltage(i);
+        for (int i = 0; i < DIGITAL_CHANNELS; i++)
+            digitalStates[i] = data.getDigitalChannelState(i);
+    }
+
+    /**
+     * @return how many bulk reads of this hub came before this one
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return {@link SensorClock} nanos the bulk read happened at
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the motor's encoder position, with its direction applied like
+     * {@link DcMotor#getCurrentPosition()}
+     */
+    public int getCurrentPosition(DcMotor motor) {
+        return sign(motor) * positions[motor.getPortNumber()];
+    }
+
+    /**
+     * @return the motor's encoder velocity in ticks per second, with its direction applied like
+     * {@link com.qualcomm.robotcore.hardware.DcMotorEx#getVelocity()}
+     */
+    public double getVelocity(DcMotor motor) {
+        return sign(motor) * velocities[motor.getPortNumber()];
+    }
+
+    public double getAnalogInputVoltage(int port) {
+        return analogVoltages[port];
+    }
+
+    public boolean getDigitalChannelState(int port) {
+        return digitalStates[port];
+    }
+
+    // the SDK flips the encoder for reversed motors, and again for motor types that spin backwards
+    private static int sign(DcMotor motor) {
+        boolean reversed = motor.getDirection() == DcMotorSimple.Direction.REVERSE;
+        MotorConfigurationType type = motor.getMotorType();
+        if (type.getOrientation() == Rotation.CCW)
+            reversed = !reversed;
+        return reversed ? -1 : 1;
+    }
+
+    /**
+     * Analog inputs and digital channels don't expose their port, but the SDK always ends their
+     * connection info with it.  Look this up once, not every read.
+     *
+     * @return the device's port, or -1 if it can't be found
+     */
+    public static int portOf(HardwareDevice device) {
+        var info = device.getConnectionInfo();
+        int start = info.lastIndexOf("port ");
+        if (start == -1)
+            return -1;
+
+        try {
+            return Integer.parseInt(info.substring(start + "port ".length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -6,7 +6,6 @@ import static java.lang.Math.abs;
 import static java.lang.Math.toDegrees;
 import static java.lang.Math.toRadians;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.Robot;
@@ -17,6 +16,7 @@ import com.qualcomm.hardware.bosch.BNO055IMU;
 import com.qualcomm.robotcore.hardware.HardwareMap;
 import com.qualcomm.robotcore.util.ReadWriteFile;
 
+import org.firstinspires.ftc.robotcore.external.navigation.AngleUnit;
 import org.firstinspires.ftc.robotcore.external.navigation.Orientation;
 import org.firstinspires.ftc.robotcore.internal.system.AppUtil;
 import org.ojalgo.matrix.Primitive64Matrix;
@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -33,17 +35,32 @@ public class IMU implements Telemeter {
     public static final String CALIBRATION_FILE = "imu_calibration.json";
     private static final File SETTINGS_FILE = AppUtil.getInstance().getSettingsFile(CALIBRATION_FILE);
     private static final double BIAS_PER_REVOLUTION = toRadians(-1);
+    // with the angle unit set to radians, the BNO055's euler and gyro registers are 16 bit
+    // little-endian at 900 LSB per radian (per second)
+    private static final double LSB_PER_RADIAN = 900;
+    // also read the gyro's z rate (the register right before heading, so it's the same
+    // transaction) and correct the filter's angular velocity with it
+    private static final boolean READ_HEADING_RATE = false;
+    private static final double HEADING_RATE_VARIANCE = toRadians(2) * toRadians(2);
     private final BNO055IMU imu;
     private final ExtendedKalmanFilter filter;
     private final ExtendedKalmanFilter offsetFilter = new ExtendedKalmanFilter(new double[1], toRadians(9));
-    private final long timeOffset;
+    private final SensorClock.Transaction transaction = new SensorClock.Transaction();
     private final double variance = toRadians(4);
     private double offset;
     private long lastUpdateTime = 0;
     private double lastTheta = 0;
     private double totalRevolutions = 0;
+    private double lastHeadingRate = 0;
 
     public IMU(HardwareMap hardwareMap, ExtendedKalmanFilter filter) {
+        this(hardwareMap, filter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param calibrationExecutor runs the wait for calibration, if there isn't a saved one
+     */
+    public IMU(HardwareMap hardwareMap, ExtendedKalmanFilter filter, Executor calibrationExecutor) {
         this.imu = hardwareMap.get(BNO055IMU.class, "imu");
         this.filter = filter;
 
@@ -52,17 +69,24 @@ public class IMU implements Telemeter {
         params.angleUnit = BNO055IMU.AngleUnit.RADIANS;
         imu.initialize(params);
 
-        timeOffset = ((SystemClock.elapsedRealtime() * 1_000_000) - System.nanoTime()) / 1_000_000;
         if (AppUtil.getInstance().getSettingsFile(CALIBRATION_FILE).exists())
             loadCalibration();
         else {
             Log.w("IMU", "Waiting for calibration...");
             try {
                 CompletableFuture.runAsync(() -> {
-                    while (!imu.isMagnetometerCalibrated() || !imu.isGyroCalibrated()) ;
+                    // this keeps going after we stop waiting for it, so don't spin;  gives up when the
+                    // executor shuts down
+                    while (!imu.isMagnetometerCalibrated() || !imu.isGyroCalibrated()) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
                     saveCalibration();
                     Log.w("IMU", "Finished calibration.");
-                }).get(Robot.DEBUG ? 0 : 1000, TimeUnit.MILLISECONDS);
+                }, calibrationExecutor).get(Robot.DEBUG ? 0 : 1000, TimeUnit.MILLISECONDS);
             } catch (InterruptedException | TimeoutException | ExecutionException e) {
                 Log.w("IMU", "Calibration failed");
                 e.printStackTrace();
@@ -85,20 +109,22 @@ public class IMU implements Telemeter {
     }
 
     public void update() {
-        var rawOrientation = imu.getAngularOrientation();
-        rawOrientation.acquisitionTime /= 1_000_000;
-        rawOrientation.acquisitionTime += timeOffset;
-
-        if (rawOrientation.acquisitionTime != lastUpdateTime && rawOrientation.acquisitionTime != 0 && rawOrientation.acquisitionTime < lastUpdateTime) // paranoia
+        // only the registers we use, rather than getAngularOrientation()'s full euler read
+        transaction.begin();
+        var data = READ_HEADING_RATE
+                ? imu.read(BNO055IMU.Register.GYR_DATA_Z_LSB, 4)
+                : imu.read(BNO055IMU.Register.EUL_H_LSB, 2);
+        long acquisitionTime = SensorClock.toMillis(transaction.end());
+
+        if (acquisitionTime < lastUpdateTime) // paranoia
             if (Robot.DEBUG)
                 throw new Error("Overflow");
             else
                 new Error("Overflow").printStackTrace();
 
-
-        if (rawOrientation.acquisitionTime > lastUpdateTime) {
-            lastUpdateTime = rawOrientation.acquisitionTime;
-            var angle = getAngle(rawOrientation);
+        if (acquisitionTime > lastUpdateTime) {
+            lastUpdateTime = acquisitionTime;
+            var angle = getAngle(READ_HEADING_RATE ? firstAngle(data, 2) : firstAngle(data, 0));
 
             // if it's more than pi/2 between two measurements, assume it's wrapped around
 //            if (abs(angle - lastTheta) < PI / 2) {
@@ -116,28 +142,63 @@ public class IMU implements Telemeter {
                     .variance(toRadians(2))
                     .stateToOutput(Primitive64Matrix.FACTORY.row(0, 0, 1))
                     .correct();
+
+            if (READ_HEADING_RATE && filter.isEstimatingVelocity()) {
+                // our heading follows the IMU's compass heading, which increases clockwise, the
+                // opposite way to the gyro's z rate
+                lastHeadingRate = -radians(data, 0);
+                filter.datumBuilder()
+                        .time(lastUpdateTime)
+                        .mean(lastHeadingRate)
+                        .variance(HEADING_RATE_VARIANCE)
+                        .stateToOutput(Primitive64Matrix.FACTORY.row(0, 0, 0, 0, 0, 1))
+                        .correct();
+            }
         }
 
 //        Log.d("IMU", String.valueOf(toDegrees(lastTheta)));
     }
 
+    public SensorClock.Transaction getTransaction() {
+        return transaction;
+    }
+
     public void resetPose(Pose pose) {
         resetHeading(pose.heading);
     }
 
     private void resetHeading(double theta) {
         lastTheta = theta;
-        this.offset = imu.getAngularOrientation().firstAngle + theta;
+        this.offset = firstAngle(imu.read(BNO055IMU.Register.EUL_H_LSB, 2), 0) + theta;
     }
 
     public double getAngle(Orientation orientation) {
-        return offset - orientation.firstAngle;
+        return getAngle(orientation.firstAngle);
+    }
+
+    private double getAngle(double firstAngle) {
+        return offset - firstAngle;
+    }
+
+    private static double radians(byte[] data, int index) {
+        return (short) ((data[index] & 0xff) | (data[index + 1] << 8)) / LSB_PER_RADIAN;
+    }
+
+    /**
+     * @return the heading at {@code index} in {@code data} the way getAngularOrientation() would
+     * give it as firstAngle:  negated, since the IMU's heading increases clockwise, and normalised.
+     */
+    private static double firstAngle(byte[] data, int index) {
+        return AngleUnit.normalizeRadians(-radians(data, index));
     }
 
     @Override
     public List<String> getTelemetryData() {
         return new ArrayList<>() {{
             add("Heading:  " + toDegrees(angleWrap(lastTheta)));
+            add("Read time:  " + transaction.getLastDurationNanos() / 1000 + " us (avg " + (int) (transaction.getAverageDurationNanos() / 1000) + " us)");
+            if (READ_HEADING_RATE)
+                add("Heading rate:  " + toDegrees(lastHeadingRate) + " deg/s");
         }};
     }
 
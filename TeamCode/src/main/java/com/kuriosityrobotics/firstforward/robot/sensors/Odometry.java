@@ -1,27 +1,28 @@
 package com.kuriosityrobotics.firstforward.robot.sensors;
 
 import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.angleWrap;
-import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.rotate;
 import static java.lang.Math.pow;
 
-import android.os.SystemClock;
-
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
 import com.kuriosityrobotics.firstforward.robot.debug.FileDump;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorEx;
 import com.qualcomm.robotcore.hardware.HardwareMap;
 
+import org.ojalgo.matrix.Primitive64Matrix;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Odometry extends RollingVelocityCalculator implements Telemeter, LocationProvider {
     // Encoders
-    private final DcMotor yLeftEncoder;
-    private final DcMotor yRightEncoder;
-    private final DcMotor mecanumBackEncoder;
-    private final DcMotor mecanumFrontEncoder;
+    private final DcMotorEx yLeftEncoder;
+    private final DcMotorEx yRightEncoder;
+    private final DcMotorEx mecanumBackEncoder;
+    private final DcMotorEx mecanumFrontEncoder;
 
     // Position of the robot, can be changed through constructor
     private double worldX;
@@ -33,6 +34,12 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
     private double yVel = 0;
     private double angleVel = 0;
 
+    // velocity of the robot from the hub's own encoder velocities, field frame.  No window, so
+    // this is what gets published unless USE_HUB_VELOCITY is off
+    private double hubXVel = 0;
+    private double hubYVel = 0;
+    private double hubAngleVel = 0;
+
     // old vel for acceleration calculations
     private double oldxVel = 0;
     private double oldyVel = 0;
@@ -48,15 +55,34 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
     private double lastRightPosition = 0;
     private double lastMecanumBackPosition = 0;
     private double lastMecanumFrontPosition = 0;
+    private long lastPositionTime = 0; // nanos
 
     // For velocity calculation
     private double oldX = 0;
     private double oldY = 0;
     private double oldHeading = 0;
 
-    private double lastUpdateTime = 0;
+    private long lastUpdateTime = 0; // nanos
+
+    // Motion since the last prediction, in the robot's frame at the time of that prediction, and
+    // its covariance (row-major).  Integrated every bulk read, but only handed to the filter every
+    // predictionPeriodMillis, so the filter replays a fraction as often.
+    private double accumulatedX = 0;
+    private double accumulatedY = 0;
+    private double accumulatedHeading = 0;
+    private final double[] accumulatedCovariance = new double[9];
+    private long predictionPeriodMillis = DEFAULT_PREDICTION_PERIOD_MILLIS;
+    // halved so now - lastPredictionTime can't overflow before the first prediction
+    private long lastPredictionTime = Long.MIN_VALUE / 2;
 
     // Constants
+    // publish the hub-measured velocity rather than differencing positions
+    private static final boolean USE_HUB_VELOCITY = true;
+    // the hub reports encoder velocity as a signed 16 bit number of ticks per second
+    private static final double HUB_VELOCITY_RANGE = 0x10000;
+    private static final long DEFAULT_PREDICTION_PERIOD_MILLIS = 15;
+    // odometry error grows with the distance moved;  this is the standard deviation per unit
+    private static final double ODOMETRY_ERROR = .8;
     private static final double INCHES_PER_ENCODER_TICK = 0.0007284406721 * (100.0 / 101.9889);
     private static final double LR_ENCODER_DIST_FROM_CENTER = 2.4367390324945863115640954444386315979381132912686705686229716745 * (3631.6415304167253 / 3600.);
     private static final double B_ENCODER_DIST_FROM_CENTER = 2.9761730787305137386664648856740921319601002407647215925090672904 * (3622.009011720834 / 3600.);
@@ -69,10 +95,10 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         this.worldY = pose.y;
         this.worldHeadingRad = pose.heading;
 
-        yLeftEncoder = hardwareMap.get(DcMotor.class, "fLeft");
-        yRightEncoder = hardwareMap.get(DcMotor.class, "fRight");
-        mecanumBackEncoder = hardwareMap.get(DcMotor.class, "bLeft");
-        mecanumFrontEncoder = hardwareMap.get(DcMotor.class, "bRight");
+        yLeftEncoder = hardwareMap.get(DcMotorEx.class, "fLeft");
+        yRightEncoder = hardwareMap.get(DcMotorEx.class, "fRight");
+        mecanumBackEncoder = hardwareMap.get(DcMotorEx.class, "bLeft");
+        mecanumFrontEncoder = hardwareMap.get(DcMotorEx.class, "bRight");
         this.kalmanFilter = kalmanFilter;
 
         resetEncoders();
@@ -81,23 +107,93 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         FileDump.addField("yVel", this);
     }
 
-    public void update() {
+    /**
+     * @param sampleTime {@link SensorClock} nanos the encoder positions were read at
+     */
+    public void update(long sampleTime) {
+        var now = SensorClock.toMillis(sampleTime);
+        calculatePosition(sampleTime);
+        accumulate(dx, dy, dHeading);
+
+        if (now - lastPredictionTime >= predictionPeriodMillis)
+            sendPrediction(now, sampleTime);
+    }
+
+    /**
+     * Sets how often the motion integrated since the last prediction is sent to the filter.
+     * Zero sends every update.
+     */
+    public void setPredictionPeriod(long millis) {
+        this.predictionPeriodMillis = millis;
+    }
+
+    /**
+     * Adds one update's robot-relative motion onto the accumulated motion, and propagates the
+     * accumulated covariance through it:  the heading uncertainty so far swings the new step
+     * around, and the step's own error is rotated into the accumulated frame.
+     */
+    private void accumulate(double dx, double dy, double dHeading) {
+        double cos = Math.cos(accumulatedHeading), sin = Math.sin(accumulatedHeading);
+        double stepX = dx * cos + dy * sin;
+        double stepY = dy * cos - dx * sin;
+
+        var c = accumulatedCovariance;
+        double p00 = c[0], p01 = c[1], p02 = c[2], p11 = c[4], p12 = c[5], p22 = c[8];
+
+        // F P F^T, with F = [[1, 0, stepY], [0, 1, -stepX], [0, 0, 1]]
+        double a = stepY, b = -stepX;
+        double n00 = p00 + 2 * a * p02 + a * a * p22;
+        double n01 = p01 + a * p12 + b * p02 + a * b * p22;
+        double n11 = p11 + 2 * b * p12 + b * b * p22;
+        double n02 = p02 + a * p22;
+        double n12 = p12 + b * p22;
+
+        // + B N B^T, with B = rotate(accumulatedHeading) and N the step's own (diagonal) variance
+        double vx = pow(ODOMETRY_ERROR * dx, 2), vy = pow(ODOMETRY_ERROR * dy, 2), vh = pow(ODOMETRY_ERROR * dHeading, 2);
+        n00 += cos * cos * vx + sin * sin * vy;
+        n01 += cos * sin * (vy - vx);
+        n11 += sin * sin * vx + cos * cos * vy;
+
+        c[0] = n00;
+        c[1] = c[3] = n01;
+        c[2] = c[6] = n02;
+        c[4] = n11;
+        c[5] = c[7] = n12;
+        c[8] = p22 + vh;
+
+        accumulatedX += stepX;
+        accumulatedY += stepY;
+        accumulatedHeading += dHeading;
+    }
 
-        var now = SystemClock.elapsedRealtime();
-        calculatePosition();
+    private void sendPrediction(long now, long sampleTime) {
+        var c = accumulatedCovariance;
         kalmanFilter.datumBuilder()
                 .time(now)
-                .mean(dx, dy, dHeading)
-                .outputToState(rotate(kalmanFilter.outputVector()[2]))
-                .variance(pow(.8 * dx, 2), pow(.8 * dy, 2), pow(.8 * dHeading, 2))
+                .mean(accumulatedX, accumulatedY, accumulatedHeading)
+                // rotated by the filter's heading as of the last prediction when it's fused
+                .robotRelative()
+                .covariance(Primitive64Matrix.FACTORY.rows(new double[][]{
+                        {c[0], c[1], c[2]},
+                        {c[3], c[4], c[5]},
+                        {c[6], c[7], c[8]}
+                }))
                 .predict();
+        clearAccumulated();
+        lastPredictionTime = now;
 
-        calculateInstantaneousVelocity();
-        this.calculateRollingVelocity(new PoseInstant(getPose(), SystemClock.elapsedRealtime() / 1000.0));
+        calculateInstantaneousVelocity(sampleTime);
+        addRollingVelocitySample(sampleTime / 1e9, worldX, worldY, worldHeadingRad);
+    }
 
+    private void clearAccumulated() {
+        accumulatedX = 0;
+        accumulatedY = 0;
+        accumulatedHeading = 0;
+        Arrays.fill(accumulatedCovariance, 0);
     }
 
-    private void calculatePosition() {
+    private void calculatePosition(long sampleTime) {
         // if odometry output is wrong, no worries, just find out which one needs to be reversed
         double newLeftPosition = yLeftEncoder.getCurrentPosition();
         double newRightPosition = yRightEncoder.getCurrentPosition();
@@ -110,6 +206,16 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         double deltaMecanumFrontPosition = newMecanumFrontPosition - lastMecanumFrontPosition;
 
         updateWorldPosition(deltaLeftPosition, deltaRightPosition, deltaMecanumBackPosition, deltaMecanumFrontPosition);
+        if (USE_HUB_VELOCITY) {
+            double dt = (sampleTime - lastPositionTime) / 1e9;
+            calculateHubVelocity(
+                    podVelocity(yLeftEncoder, deltaLeftPosition, dt),
+                    podVelocity(yRightEncoder, deltaRightPosition, dt),
+                    podVelocity(mecanumBackEncoder, deltaMecanumBackPosition, dt),
+                    podVelocity(mecanumFrontEncoder, deltaMecanumFrontPosition, dt)
+            );
+        }
+        lastPositionTime = sampleTime;
 
         lastLeftPosition = newLeftPosition;
         lastRightPosition = newRightPosition;
@@ -117,9 +223,66 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         lastMecanumFrontPosition = newMecanumFrontPosition;
     }
 
-    private void calculateInstantaneousVelocity() {
-        long currentUpdateTime = SystemClock.elapsedRealtime();
-        double dTime = (currentUpdateTime - lastUpdateTime) / 1000;
+    /**
+     * @return the encoder's velocity in ticks per second, as read by the hub with the last bulk
+     * read.  The hub's 16 bit value wraps at a few feet per second with these encoders, so it's
+     * unwrapped towards the velocity implied by the change in position.
+     */
+    private static double podVelocity(DcMotorEx encoder, double deltaTicks, double dt) {
+        double velocity = encoder.getVelocity();
+        if (dt <= 0)
+            return velocity;
+
+        double estimate = deltaTicks / dt;
+        while (Math.abs(estimate - velocity) > HUB_VELOCITY_RANGE / 2)
+            velocity += Math.signum(estimate - velocity) * HUB_VELOCITY_RANGE;
+        return velocity;
+    }
+
+    /**
+     * Same kinematics as {@link #updateWorldPosition}, in the limit of an infinitely short step.
+     * The result is rotated into the field by the filter's heading, so it agrees with the pose it
+     * gets published alongside.
+     */
+    private void calculateHubVelocity(double leftPod, double rightPod, double mecanumBackPod, double mecanumFrontPod) {
+        double left = leftPod * INCHES_PER_ENCODER_TICK;
+        double right = rightPod * INCHES_PER_ENCODER_TICK;
+        double mecanumBack = mecanumBackPod * INCHES_PER_ENCODER_TICK;
+        double mecanumFront = mecanumFrontPod * INCHES_PER_ENCODER_TICK;
+
+        double P = LR_ENCODER_DIST_FROM_CENTER;
+        double Q = B_ENCODER_DIST_FROM_CENTER;
+
+        double omegaLR = (left - right) / (2 * P);
+        double omegaFB = (mecanumFront - mecanumBack) / (2 * Q);
+
+        double X = Math.abs(left + right);
+        double Y = Math.abs(mecanumFront + mecanumBack);
+
+        double weightLR = 0.5;
+        double weightFB = 0.5;
+
+        if (X + Y != 0) {
+            weightLR = X / (X + Y);
+            weightFB = Y / (X + Y);
+        }
+
+        double omega = weightLR * omegaLR + weightFB * omegaFB;
+
+        double robotX = mecanumBack + Q * omega;
+        double robotY = left - P * omega;
+
+        double heading = kalmanFilter.getSnapshot().getState(2);
+        double cos = Math.cos(heading), sin = Math.sin(heading);
+        hubXVel = robotX * cos + robotY * sin;
+        hubYVel = robotY * cos - robotX * sin;
+        hubAngleVel = omega;
+    }
+
+    private void calculateInstantaneousVelocity(long currentUpdateTime) {
+        double dTime = (currentUpdateTime - lastUpdateTime) / 1e9;
+        if (dTime <= 0)
+            return;
 
         // normalize to milliseconds then apply dimensional analysis to get to seconds
         xVel = (worldX - oldX) / (dTime);
@@ -171,33 +334,30 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
 
         double dTheta = weightLR * dThetaLR + weightFB * dThetaFB;
 
-        double dRobotX = dMecanumBackPodInches * sinXOverX(dTheta) + Q * Math.sin(dTheta) - dLeftPodInches * cosXMinusOneOverX(dTheta) + P * (Math.cos(dTheta) - 1);
-        double dRobotY = dLeftPodInches * sinXOverX(dTheta) - P * Math.sin(dTheta) + dMecanumBackPodInches * cosXMinusOneOverX(dTheta) + Q * (Math.cos(dTheta) - 1);
+        double sinDTheta = Math.sin(dTheta), cosDThetaMinusOne = Math.cos(dTheta) - 1;
+        double sinc = sinXOverX(dTheta), cosc = cosXMinusOneOverX(dTheta);
+        double dRobotX = dMecanumBackPodInches * sinc + Q * sinDTheta - dLeftPodInches * cosc + P * cosDThetaMinusOne;
+        double dRobotY = dLeftPodInches * sinc - P * sinDTheta + dMecanumBackPodInches * cosc + Q * cosDThetaMinusOne;
 
         // change global variables so they can be used in the kalman filter
         dx = dRobotX;
         dy = dRobotY;
         dHeading = dTheta;
 
-        worldX += dRobotX * Math.cos(worldHeadingRad) + dRobotY * Math.sin(worldHeadingRad);
-        worldY += dRobotY * Math.cos(worldHeadingRad) - dRobotX * Math.sin(worldHeadingRad);
+        double cos = Math.cos(worldHeadingRad), sin = Math.sin(worldHeadingRad);
+        worldX += dRobotX * cos + dRobotY * sin;
+        worldY += dRobotY * cos - dRobotX * sin;
         worldHeadingRad = worldHeadingRad + dTheta;
     }
 
     /*
-    taylor series expansion to make stuff COOL
+    taylor series expansion to make stuff COOL.  Per-update angles are tiny, so a few terms in
+    Horner form are exact to double precision;  anything bigger just uses the library functions.
      */
-    private double sinXOverX(double x) {
-        if (Math.abs(x) < 2) {
-            double retVal = 0;
-            double top = 1;
-            double bottom = 1;
-            for (int i = 0; i < 9; i++) {
-                retVal += top / bottom;
-                top *= -x * x;
-                bottom *= (2 * i + 2) * (2 * i + 3);
-            }
-            return retVal;
+    private static double sinXOverX(double x) {
+        if (Math.abs(x) < .5) {
+            double x2 = x * x;
+            return 1 - x2 / 6 * (1 - x2 / 20 * (1 - x2 / 42 * (1 - x2 / 72 * (1 - x2 / 110 * (1 - x2 / 156)))));
         } else {
             return Math.sin(x) / x;
         }
@@ -206,17 +366,10 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
     /*
     taylor series expansion to make stuff COOL
      */
-    private double cosXMinusOneOverX(double x) {
-        if (Math.abs(x) < 2) {
-            double retVal = 0;
-            double top = -x;
-            double bottom = 2;
-            for (int i = 0; i < 9; i++) {
-                retVal += top / bottom;
-                top *= -x * x;
-                bottom *= (2 * i + 3) * (2 * i + 4);
-            }
-            return retVal;
+    private static double cosXMinusOneOverX(double x) {
+        if (Math.abs(x) < .5) {
+            double x2 = x * x;
+            return -x / 2 * (1 - x2 / 12 * (1 - x2 / 30 * (1 - x2 / 56 * (1 - x2 / 90 * (1 - x2 / 132 * (1 - x2 / 182))))));
         } else {
             return (Math.cos(x) - 1) / x;
         }
@@ -246,11 +399,17 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         data.add("worldX: " + worldX);
         data.add("worldY: " + worldY);
         data.add("worldHeading: " + Math.toDegrees(angleWrap(worldHeadingRad)));
+        data.add("hub velocity: " + getHubVelocity().toDegrees());
+        data.add("differenced velocity: " + getInstantaneousVelocity().toDegrees());
 
         return data;
     }
 
     public void setPose(Pose pose) {
+        // motion measured from the old pose is meaningless from the new one
+        clearAccumulated();
+        resetRollingVelocity();
+
         this.oldX = pose.x;
         this.oldY = pose.y;
         this.oldHeading = pose.heading;
@@ -269,8 +428,15 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
         return new Pose(worldX, worldY, worldHeadingRad);
     }
 
+    /**
+     * @return the hub-measured velocity, or the differenced one if that's turned off
+     */
     public Pose getVelocity() {
-        return getInstantaneousVelocity();
+        return USE_HUB_VELOCITY ? getHubVelocity() : getInstantaneousVelocity();
+    }
+
+    public Pose getHubVelocity() {
+        return new Pose(hubXVel, hubYVel, hubAngleVel);
     }
 
     public Pose getInstantaneousVelocity() {
@@ -278,7 +444,7 @@ public class Odometry extends RollingVelocityCalculator implements Telemeter, Lo
     }
 
     public double getVelMag() {
-        return Math.hypot(xVel, yVel);
+        return USE_HUB_VELOCITY ? Math.hypot(hubXVel, hubYVel) : Math.hypot(xVel, yVel);
     }
 
     @Override
@@ -1,65 +1,130 @@
 package com.kuriosityrobotics.firstforward.robot.sensors;
 
-import android.os.SystemClock;
-import android.util.Log;
+import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.angleWrap;
 
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+/**
+ * Velocity as the least-squares slope of x, y and heading against time over the last
+ * {@link #VELOCITY_WINDOW_S}.  Samples sit in a ring buffer with running sums, so adding one is
+ * O(1) and allocates nothing.
+ */
 public abstract class RollingVelocityCalculator {
     private static final double VELOCITY_WINDOW_S = 0.100;
+    // more than enough for the window at any rate we sample at;  if it fills, the window shrinks
+    private static final int CAPACITY = 64;
+    // running sums drift as samples come and go, so recompute them from the buffer this often
+    private static final int RESUM_INTERVAL = 1024;
+
+    private final Object lock = new Object();
+
+    // times are relative to origin, and headings are unwrapped, so the sums stay well conditioned
+    private final double[] times = new double[CAPACITY];
+    private final double[] xs = new double[CAPACITY];
+    private final double[] ys = new double[CAPACITY];
+    private final double[] headings = new double[CAPACITY];
+    private int head = 0, size = 0;
+    private int samplesSinceResum = 0;
+    private double origin = Double.NaN;
+
+    private double sumT, sumTT, sumX, sumTX, sumY, sumTY, sumH, sumTH;
+
+    private double xVelocity = 0, yVelocity = 0, angularVelocity = 0;
+
+    /**
+     * @param timestamp seconds
+     */
+    protected void addRollingVelocitySample(double timestamp, double x, double y, double heading) {
+        synchronized (lock) {
+            if (size == 0)
+                origin = timestamp;
+
+            double t = timestamp - origin;
+            if (size > 0) {
+                double previous = headings[index(size - 1)];
+                heading = previous + angleWrap(heading - previous);
+            }
 
-    private final ConcurrentLinkedQueue<PoseInstant> history = new ConcurrentLinkedQueue<>();
-    private Pose velocity = new Pose(0, 0, 0);
-
-    @SuppressWarnings("ConstantConditions")
-    protected void calculateRollingVelocity(PoseInstant currentPose) {
-        double currentTime = SystemClock.elapsedRealtime() / 1000.0;
+            while (size > 0 && (size == CAPACITY || times[head] < t - VELOCITY_WINDOW_S))
+                removeOldest();
+
+            int i = index(size++);
+            times[i] = t;
+            xs[i] = x;
+            ys[i] = y;
+            headings[i] = heading;
+            add(t, x, y, heading, 1);
+
+            if (++samplesSinceResum >= RESUM_INTERVAL)
+                resum();
+
+            double n = size;
+            double denominator = n * sumTT - sumT * sumT;
+            if (size < 2 || denominator <= 1e-12) {
+                // nothing in the window to take a slope from (e.g. after a gap in samples), and
+                // whatever was measured before the gap is no guide to now
+                xVelocity = yVelocity = angularVelocity = 0;
+                return;
+            }
 
-        // remove oldest velocities
-        while (!history.isEmpty() && history.peek().timestamp < currentTime - VELOCITY_WINDOW_S) {
-            history.poll();
+            xVelocity = (n * sumTX - sumT * sumX) / denominator;
+            yVelocity = (n * sumTY - sumT * sumY) / denominator;
+            angularVelocity = (n * sumTH - sumT * sumH) / denominator;
         }
+    }
 
-        // add current pose
-        history.add(currentPose);
-
-        ArrayList<Pose> velos = new ArrayList<>();
-
-        // calculate the velocity between each datapoint
-        Iterator<PoseInstant> itr = history.iterator();
-        PoseInstant last = itr.next();
-        while (itr.hasNext()) {
-            PoseInstant current = itr.next();
-
-            if (current.timestamp == last.timestamp) {
-                continue;
-            }
+    private int index(int offset) {
+        return (head + offset) % CAPACITY;
+    }
 
-            velos.add(current.minus(last).divide(current.timestamp - last.timestamp));
+    private void removeOldest() {
+        add(times[head], xs[head], ys[head], headings[head], -1);
+        head = (head + 1) % CAPACITY;
+        size--;
+    }
 
-            last = current;
-        }
+    private void add(double t, double x, double y, double heading, int sign) {
+        sumT += sign * t;
+        sumTT += sign * t * t;
+        sumX += sign * x;
+        sumTX += sign * t * x;
+        sumY += sign * y;
+        sumTY += sign * t * y;
+        sumH += sign * heading;
+        sumTH += sign * t * heading;
+    }
 
-        if (velos.isEmpty()) {
-            Log.e("MP", "No velocities!");
-            return;
+    /**
+     * Rebases times on the oldest sample and headings into (-pi, pi] around it, and recomputes
+     * the sums from scratch.
+     */
+    private void resum() {
+        double timeShift = times[head];
+        double headingShift = headings[head] - angleWrap(headings[head]);
+        origin += timeShift;
+
+        sumT = sumTT = sumX = sumTX = sumY = sumTY = sumH = sumTH = 0;
+        for (int k = 0; k < size; k++) {
+            int i = index(k);
+            times[i] -= timeShift;
+            headings[i] -= headingShift;
+            add(times[i], xs[i], ys[i], headings[i], 1);
         }
+        samplesSinceResum = 0;
+    }
 
-        Pose sum = new Pose(0, 0, 0);
-        // avg the calculated velos
-        for (Pose pose : velos) {
-            sum = sum.add(pose);
+    protected void resetRollingVelocity() {
+        synchronized (lock) {
+            head = size = 0;
+            samplesSinceResum = 0;
+            sumT = sumTT = sumX = sumTX = sumY = sumTY = sumH = sumTH = 0;
+            xVelocity = yVelocity = angularVelocity = 0;
         }
-        Pose avg = sum.divide(velos.size());
-
-        this.velocity = avg;
     }
 
     public Pose getRollingVelocity() {
-        return this.velocity;
+        synchronized (lock) {
+            return new Pose(xVelocity, yVelocity, angularVelocity);
+        }
     }
 }
@@ -0,0 +1,96 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import android.os.SystemClock;
+
+/**
+ * The one clock sensor samples are stamped with:  {@link SystemClock#elapsedRealtimeNanos()}, so
+ * it's monotonic, has nanosecond resolution, and agrees exactly with the
+ * {@link SystemClock#elapsedRealtime()} millis the filter and everything else use.
+ */
+public final class SensorClock {
+    // System.nanoTime() (vuforia, the SDK) runs on a different clock;  this is the difference
+    private static final long NANO_TIME_OFFSET = measureNanoTimeOffset();
+
+    private SensorClock() {
+    }
+
+    public static long nanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static long toMillis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * @param nanoTime a {@link System#nanoTime()} timestamp
+     * @return the same instant on this clock
+     */
+    public static long fromNanoTime(long nanoTime) {
+        return nanoTime + NANO_TIME_OFFSET;
+    }
+
+    private static long measureNanoTimeOffset() {
+        // bracket nanoTime() with our clock, and keep the tightest bracket
+        long bestWidth = Long.MAX_VALUE, offset = 0;
+        for (int i = 0; i < 10; i++) {
+            long before = nanos();
+            long nanoTime = System.nanoTime();
+            long after = nanos();
+
+            if (after - before < bestWidth) {
+                bestWidth = after - before;
+                offset = before + (after - before) / 2 - nanoTime;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Times one hardware transaction at a time (a bulk read, an I2C read).  The sample is stamped
+     * with the middle of the transaction, which is the best guess at when the hardware took it
+     * without knowing where in the round trip that happened.
+     * <p>
+     * Not thread safe;  each sensor should have its own.
+     */
+    public static final class Transaction {
+        // weight of the newest duration in the running average
+        private static final double AVERAGE_WEIGHT = .05;
+
+        private long start;
+        private volatile long midpoint;
+        private volatile long lastDuration;
+        private volatile double averageDuration = 0;
+
+        public void begin() {
+            start = nanos();
+        }
+
+        /**
+         * @return the midpoint of the transaction
+         */
+        public long end() {
+            long end = nanos();
+            long duration = end - start;
+
+            lastDuration = duration;
+            averageDuration = averageDuration == 0 ? duration : (1 - AVERAGE_WEIGHT) * averageDuration + AVERAGE_WEIGHT * duration;
+            return midpoint = start + duration / 2;
+        }
+
+        /**
+         * @return the midpoint of the last transaction
+         */
+        public long getMidpoint() {
+            return midpoint;
+        }
+
+        public long getLastDurationNanos() {
+            return lastDuration;
+        }
+
+        public double getAverageDurationNanos() {
+            return averageDuration;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.modules.Module;
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.AsynchSensor;
+import com.qualcomm.robotcore.util.Range;
+
+/**
+ * Decides how often the IMU and the expansion hub are read, so hub bandwidth goes where it buys
+ * accuracy:  the IMU speeds up while the robot spins, the expansion hub slows down when nothing
+ * is using its data, and everything slows down before the opmode starts.
+ */
+class SensorRatePolicy {
+    // before start nobody is driving, so just keep the data from going stale
+    private static final double DISABLED_HZ = 2;
+    private static final double DISABLED_ODOMETRY_HZ = 20;
+
+    // IMU rate goes from IMU_MIN_HZ to IMU_MAX_HZ as angular velocity goes between these (rad/s)
+    private static final double IMU_MIN_HZ = 10;
+    private static final double IMU_MAX_HZ = 50;
+    private static final double SLOW_ANGULAR_VELOCITY = .5;
+    private static final double FAST_ANGULAR_VELOCITY = 3;
+
+    private static final double EXPANSION_HUB_HZ = 60;
+    // the camera turret encoder is on the expansion hub;  only needs to keep up with the camera
+    private static final double EXPANSION_HUB_VISION_HZ = 30;
+    private static final double EXPANSION_HUB_IDLE_HZ = 5;
+
+    private final Robot robot;
+    private final Odometry odometry;
+    private final AsynchSensor imu;
+    private final AsynchSensor expansionHub;
+    private final AsynchSensor controlHub;
+
+    SensorRatePolicy(Robot robot, Odometry odometry, AsynchSensor imu, AsynchSensor expansionHub, AsynchSensor controlHub) {
+        this.robot = robot;
+        this.odometry = odometry;
+        this.imu = imu;
+        this.expansionHub = expansionHub;
+        this.controlHub = controlHub;
+    }
+
+    void update() {
+        if (!robot.started()) {
+            imu.setMaxFrequency(DISABLED_HZ);
+            expansionHub.setMaxFrequency(DISABLED_HZ);
+            controlHub.setMaxFrequency(DISABLED_ODOMETRY_HZ);
+            return;
+        }
+
+        controlHub.setMaxFrequency(Double.POSITIVE_INFINITY);
+
+        double angularVelocity = Math.abs(odometry.getVelocity().heading);
+        double spin = Range.clip((angularVelocity - SLOW_ANGULAR_VELOCITY) / (FAST_ANGULAR_VELOCITY - SLOW_ANGULAR_VELOCITY), 0, 1);
+        imu.setMaxFrequency(IMU_MIN_HZ + spin * (IMU_MAX_HZ - IMU_MIN_HZ));
+
+        if (modulesNeedExpansionHub())
+            expansionHub.setMaxFrequency(EXPANSION_HUB_HZ);
+        else if (robot.usingCamera())
+            expansionHub.setMaxFrequency(EXPANSION_HUB_VISION_HZ);
+        else
+            expansionHub.setMaxFrequency(EXPANSION_HUB_IDLE_HZ);
+    }
+
+    private boolean modulesNeedExpansionHub() {
+        var modules = robot.getModules();
+        if (modules == null)
+            return true;
+
+        for (Module module : modules)
+            if (module.isOn() && module.needsExpansionHubData())
+                return true;
+
+        return false;
+    }
+}
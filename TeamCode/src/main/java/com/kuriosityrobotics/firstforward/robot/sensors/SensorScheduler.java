@@ -0,0 +1,99 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import android.util.Log;
+
+import com.kuriosityrobotics.firstforward.robot.util.wrappers.AsynchSensor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs each {@link AsynchSensor} on its own thread, released every period at its phase offset.
+ * Between releases the thread parks, so nothing spins and a slow read on one hub can't hold up a
+ * sensor on the other.
+ * <p>
+ * A run that finishes after the next release counts as an overrun, and releases it ran past are
+ * skipped rather than run back to back to catch up.
+ */
+public class SensorScheduler {
+    // longest a sensor thread parks at once, so period changes and shutdown are noticed promptly
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final Map<String, AsynchSensor> sensors = new LinkedHashMap<>();
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private final BooleanSupplier running;
+    private final ThreadFactory threadFactory;
+
+    public SensorScheduler(BooleanSupplier running, ThreadFactory threadFactory) {
+        this.running = running;
+        this.threadFactory = threadFactory;
+    }
+
+    public void add(String name, AsynchSensor sensor) {
+        sensors.put(name, sensor);
+    }
+
+    public Map<String, AsynchSensor> getSensors() {
+        return sensors;
+    }
+
+    public void start() {
+        long start = System.nanoTime();
+        for (var entry : sensors.entrySet()) {
+            var thread = threadFactory.newThread(() -> runSensor(entry.getKey(), entry.getValue(), start));
+            thread.setName("Sensor-" + entry.getKey());
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits for every sensor thread to finish its current run and exit.  Only returns once
+     * {@code running} has gone false.
+     */
+    public void join() throws InterruptedException {
+        for (var thread : threads)
+            thread.join();
+        threads.clear();
+    }
+
+    private void runSensor(String name, AsynchSensor sensor, long start) {
+        // the period can change at any time, so only remember the last release
+        long previousRelease = start + sensor.getPhaseNanos() - sensor.getPeriodNanos();
+
+        while (running.getAsBoolean()) {
+            long period = sensor.getPeriodNanos();
+            long release = previousRelease + period;
+            long now = System.nanoTime();
+            if (now < release) {
+                LockSupport.parkNanos(this, Math.min(release - now, MAX_PARK_NANOS));
+                continue;
+            }
+
+            try {
+                sensor.run(now, now - release);
+            } catch (RuntimeException e) {
+                Log.e("SensorScheduler", name + " failed", e);
+            }
+
+            long end = System.nanoTime();
+            if (period == 0) {
+                previousRelease = end;
+                continue;
+            }
+
+            previousRelease = release;
+            if (end > release + period) {
+                long skipped = (end - release) / period;
+                sensor.recordOverrun(skipped);
+                previousRelease += skipped * period;
+            }
+        }
+        Log.v("SensorScheduler", name + " exited due to opMode no longer being active.");
+    }
+}
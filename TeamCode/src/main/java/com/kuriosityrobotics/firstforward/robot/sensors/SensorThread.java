@@ -1,32 +1,36 @@
 package com.kuriosityrobotics.firstforward.robot.sensors;
 
 import static java.text.MessageFormat.format;
-import static java.util.concurrent.CompletableFuture.runAsync;
-import static java.util.concurrent.ForkJoinPool.commonPool;
-import static de.esoco.coroutine.Coroutine.first;
-import static de.esoco.coroutine.step.CodeExecution.consume;
 
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.RobotExecutors;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
 import com.kuriosityrobotics.firstforward.robot.sensors.kf.KalmanDatum;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.ParticleFilter;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.PoseAtTime;
+import com.kuriosityrobotics.firstforward.robot.sensors.kf.PoseSnapshot;
 import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 import com.kuriosityrobotics.firstforward.robot.util.wrappers.AsynchSensor;
-import com.qualcomm.hardware.lynx.LynxModule;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-
-import de.esoco.coroutine.Coroutine;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class SensorThread implements Runnable, Telemeter {
+    // shadow the Kalman filter with a particle filter, for comparing the two in telemetry
+    private static final boolean RUN_PARTICLE_FILTER = false;
+    // the sensors run on their own threads;  this one just adjusts their rates and sends the pose
+    // to the dashboard
+    private static final long RATE_POLICY_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long POSE_SEND_PERIOD_MILLIS = 250;
 
-    private static final Coroutine<LynxModule, Void> bulkDataCoroutine = first(consume(LynxModule::getBulkData));
     /**
      * This is a singleton.  Pose position and history is persisted through this.
      * Remember to register it as a telemeter each time a new Robot is created.
@@ -34,41 +38,79 @@ public class SensorThread implements Runnable, Telemeter {
     private static final ExtendedKalmanFilter theKalmanFilter;
 
     static {
-        theKalmanFilter = new ExtendedKalmanFilter(0, 0, 0);
+        // x, y, heading.  Velocity states stay off until something reads the snapshot's velocity:
+        // they move the pose by a filtered velocity instead of odometry's exact deltas, and vision
+        // fixes stop being full-state, so they'd never be smoothed
+        theKalmanFilter = new ExtendedKalmanFilter(ExtendedKalmanFilter.Engine.FIXED, false, new double[3], new double[3]);
     }
 
-    private final HashMap<String, AsynchSensor> sensors;
+    private final SensorScheduler scheduler;
+    private final SensorRatePolicy ratePolicy;
+    // bulk reads, stamped at the middle of the transaction
+    private final SensorClock.Transaction controlHubRead = new SensorClock.Transaction();
+    private final SensorClock.Transaction expansionHubRead = new SensorClock.Transaction();
+    private final HubData hubData = new HubData();
 
     private final Robot robot;
     private final Odometry odometry;
     private final IMU imu;
+    private final ParticleFilter particleFilter;
     private long updateTime = 0;
     private long lastLoopTime = 0;
-    private long lastPoseSendTime = 0;
 
     public SensorThread(Robot robot) {
         this.robot = robot;
 
         this.odometry = new Odometry(robot.getHardwareMap(), getPose(), theKalmanFilter);
-        this.imu = new IMU(robot.getHardwareMap(), theKalmanFilter);
+        this.imu = new IMU(robot.getHardwareMap(), theKalmanFilter, robot.getExecutors().get(RobotExecutors.Workload.SENSOR));
 
         robot.getTelemetryDump().registerTelemeter(theKalmanFilter);
         robot.getTelemetryDump().registerTelemeter(odometry);
         robot.getTelemetryDump().registerTelemeter(imu);
 
-        sensors = new HashMap<>();
-        sensors.put("IMU", new AsynchSensor(10, imu::update));
-        sensors.put("EH", new AsynchSensor(60, robot.getExpansionHub()::getBulkData));
-        sensors.put("CH/Odo", new AsynchSensor(() -> {
-            robot.getControlHub().getBulkData();
-            odometry.update();
-        }));
+        if (RUN_PARTICLE_FILTER) {
+            var snapshot = theKalmanFilter.getSnapshot();
+            this.particleFilter = new ParticleFilter(robot.getExecutors().getSensorComputePool(), snapshot.toArray(),
+                    snapshot.getVariance(0), snapshot.getVariance(1), snapshot.getVariance(2));
+            robot.getTelemetryDump().registerTelemeter(particleFilter);
+        } else {
+            this.particleFilter = null;
+        }
+        // the Kalman filter outlives this thread, so always overwrite the last one's follower
+        theKalmanFilter.setFollower(particleFilter);
+
+        // the IMU shares the control hub with odometry, so keep it off the expansion hub's phase
+        var imuSensor = new AsynchSensor(10, 5, imu::update);
+        var expansionHubSensor = new AsynchSensor(60, () -> {
+            expansionHubRead.begin();
+            var data = robot.getExpansionHub().getBulkData();
+            hubData.publish(HubData.Hub.EXPANSION, data, expansionHubRead.end());
+        });
+        var controlHubSensor = new AsynchSensor(this::readControlHub);
+        scheduler = new SensorScheduler(robot::running, RobotExecutors.threadFactory(RobotExecutors.Workload.SENSOR, "Sensor"));
+        scheduler.add("IMU", imuSensor);
+        scheduler.add("EH", expansionHubSensor);
+        if (Robot.LOCKSTEP) {
+            // the lockstep loop reads the control hub itself, and fuses every read
+            odometry.setPredictionPeriod(0);
+        } else {
+            scheduler.add("CH/Odo", controlHubSensor);
+        }
+        // the frequencies above are only where things start
+        ratePolicy = new SensorRatePolicy(robot, odometry, imuSensor, expansionHubSensor, controlHubSensor);
     }
 
     public ExtendedKalmanFilter getKalmanFilter() {
         return theKalmanFilter;
     }
 
+    /**
+     * @return the particle filter shadowing the Kalman filter, or null if it isn't running
+     */
+    public ParticleFilter getParticleFilter() {
+        return particleFilter;
+    }
+
     public void resetPose(Pose pose) {
         getOdometry().setPose(pose);
 
@@ -76,29 +118,54 @@ public class SensorThread implements Runnable, Telemeter {
 
         theKalmanFilter.reset(pose.x, pose.y, pose.heading);
         getImu().resetPose(pose);
+        if (particleFilter != null)
+            particleFilter.reset(new double[]{pose.x, pose.y, pose.heading}, new double[3]);
 
         robot.getTelemetryDump().registerTelemeter(theKalmanFilter);
     }
 
     @Override
     public void run() {
+        scheduler.start();
+
+        long lastPoseSendTime = 0;
         while (robot.running()) {
-            sensors.values().forEach(AsynchSensor::update);
+            ratePolicy.update();
 
             long currentTime = SystemClock.elapsedRealtime();
-
-            if (currentTime - lastPoseSendTime >= 250) {
+            if (currentTime - lastPoseSendTime >= POSE_SEND_PERIOD_MILLIS) {
                 robot.getTelemetryDump().sendPose(getPose().toDegrees());
                 lastPoseSendTime = currentTime;
             }
 
             updateTime = currentTime - lastLoopTime;
             lastLoopTime = currentTime;
+
+            LockSupport.parkNanos(this, RATE_POLICY_PERIOD_NANOS);
+        }
+
+        try {
+            scheduler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        commonPool().shutdown();
         Log.v("SensorThread", "Exited due to opMode no longer being active.");
     }
 
+    /**
+     * Bulk reads the control hub, publishes it and updates odometry from it.
+     *
+     * @return {@link SensorClock} nanos the read happened at
+     */
+    public long readControlHub() {
+        controlHubRead.begin();
+        var data = robot.getControlHub().getBulkData();
+        long time = controlHubRead.end();
+        hubData.publish(HubData.Hub.CONTROL, data, time);
+        odometry.update(time);
+        return time;
+    }
+
     public void predict(KalmanDatum datum) {
         theKalmanFilter.predict(datum);
     }
@@ -108,11 +175,41 @@ public class SensorThread implements Runnable, Telemeter {
     }
 
     public Pose getPose() {
-        return Pose.of(theKalmanFilter.outputVector());
+        return theKalmanFilter.getSnapshot().getPose();
     }
 
+    /**
+     * @return the filter's latest published estimate, with its version and timestamp
+     */
+    public PoseSnapshot getPoseSnapshot() {
+        return theKalmanFilter.getSnapshot();
+    }
+
+    /**
+     * @return the velocity measured by the odometry pods' hub, which (unlike the filter's or the
+     * rolling estimate) isn't averaged over a window
+     */
     public Pose getVelocity() {
-        return theKalmanFilter.getRollingVelocity();
+        return odometry.getVelocity();
+    }
+
+    public PoseAtTime getPoseAt(long time) {
+        return theKalmanFilter.getPoseAt(time);
+    }
+
+    /**
+     * @return {@link SensorClock} nanos the expansion hub's cached bulk data (the intake distance
+     * sensor, slide and camera turret encoders) was read at
+     */
+    public long getExpansionHubSampleTime() {
+        return expansionHubRead.getMidpoint();
+    }
+
+    /**
+     * @return snapshots of every bulk read, for modules to read encoders and inputs from
+     */
+    public HubData getHubData() {
+        return hubData;
     }
 
     public Pose getOdometryVelocity() {
@@ -127,22 +224,39 @@ public class SensorThread implements Runnable, Telemeter {
         data.add("Update time: " + updateTime);
         data.add("Robot Pose: " + getPose().toDegrees());
 
-        for (var sensor : sensors.entrySet()) {
+        for (var sensor : scheduler.getSensors().entrySet()) {
             var builder = new StringBuilder();
             builder.append(sensor.getKey());
-            builder.append(" update time (last 1s avg):  ");
+            builder.append(" rate ");
+            builder.append((int) Math.min(sensor.getValue().getMaxFrequency(), 9999));
+            builder.append(" Hz max, update time (last 1s avg):  ");
             var avg = sensor.getValue().rollingAverageUpdateTime();
             builder.append((int)avg);
             builder.append(" ms (");
             builder.append((int)(1000 / avg));
-            builder.append(" Hz)");
+            builder.append(" Hz), ");
+            builder.append(sensor.getValue().getOverruns());
+            builder.append(" overruns, ");
+            builder.append(sensor.getValue().getSkips());
+            builder.append(" skipped, worst start ");
+            builder.append(sensor.getValue().getMaxLatenessNanos() / 1000);
+            builder.append(" us late");
             data.add(builder.toString());
         }
 
+        data.add(transactionTelemetry("CH bulk read", controlHubRead));
+        data.add(transactionTelemetry("EH bulk read", expansionHubRead));
+        data.add(transactionTelemetry("IMU read", imu.getTransaction()));
+        data.add("Hub data reads:  " + hubData.getReads() + " (" + hubData.getStaleReads() + " stale, " + hubData.getUncachedReads() + " uncached)");
+
 
         return data;
     }
 
+    private static String transactionTelemetry(String name, SensorClock.Transaction transaction) {
+        return name + " time:  " + transaction.getLastDurationNanos() / 1000 + " us (avg " + (int) (transaction.getAverageDurationNanos() / 1000) + " us)";
+    }
+
     @Override
     public HashMap<String, Object> getDashboardData() {
         HashMap<String, Object> data = new HashMap<>();
@@ -2,37 +2,139 @@ package com.kuriosityrobotics.firstforward.robot.sensors.kf;
 
 import static com.kuriosityrobotics.firstforward.robot.Robot.assertThat;
 
-import static java.text.MessageFormat.format;
-
 import android.os.SystemClock;
-import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.sensors.RollingVelocityCalculator;
+import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
 
 import org.ojalgo.matrix.Primitive64Matrix;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-
-public class ExtendedKalmanFilter extends RollingVelocityCalculator implements Telemeter {
-    private static final int MOVING_WINDOW_SIZE = 500;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class ExtendedKalmanFilter extends RollingVelocityCalculator implements PoseEstimator, Telemeter {
+    // how much history is kept for out-of-order data and smoothing
+    private static final long MOVING_WINDOW_MILLIS = 3000;
+    // hard cap, in case data comes in faster than expected
+    private static final int MAX_HISTORY_SIZE = 2048;
+    // default smoothing lag
+    private static final int SMOOTHING_LAG_STATES = 100;
+    private static final long SMOOTHING_LAG_MILLIS = 1000;
+    // velocities looked up from the history are averaged over this long, so a correction
+    // landing right next to the query doesn't show up as a huge spike
+    private static final long VELOCITY_SPAN_MILLIS = 50;
+    // velocity model:  white-noise acceleration, and a floor on how sure a single prediction can
+    // make us of the velocity.  The pose filter's heading is position 2; everything else is linear.
+    // The positions follow the velocity, so the acceleration noise is kept loose enough that they
+    // don't trail the odometry when the robot speeds up.
+    private static final double LINEAR_ACCELERATION_VARIANCE = 150 * 150; // (in/s^2)^2 per s
+    private static final double ANGULAR_ACCELERATION_VARIANCE = 15 * 15; // (rad/s^2)^2 per s
+    private static final double LINEAR_VELOCITY_VARIANCE_FLOOR = .5 * .5; // (in/s)^2
+    private static final double ANGULAR_VELOCITY_VARIANCE_FLOOR = .01 * .01; // (rad/s)^2
+    // chi-squared quantiles for 1, 2 and 3 degrees of freedom, at each of CHI_SQUARED_CONFIDENCES
+    private static final double[] CHI_SQUARED_CONFIDENCES = {.95, .99, .999};
+    private static final double[][] CHI_SQUARED = {
+            {3.841, 6.635, 10.828},
+            {5.991, 9.210, 13.816},
+            {7.815, 11.345, 16.266}
+    };
+    private static final Comparator<Measurement> BY_TIME = (a, b) -> Long.compare(a.datum.time, b.datum.time);
     private final Object lock = new Object();
-    private final LinkedList<PostPredictionState> history = new LinkedList<>();
+    private final Engine engine;
+    // if set, the state is the position (positionDimension entries) followed by its velocity
+    private final boolean velocityStates;
+    private final int positionDimension;
+
+    // measurements waiting to be fused; any thread may add, only the fusing thread removes
+    private final ConcurrentLinkedQueue<Measurement> pending = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Measurement> batch = new ArrayList<>();
+    private volatile Thread fusionThread;
+    // gets every fused measurement too, in time order within each batch
+    private volatile PoseEstimator follower;
+    // fused measurements waiting to be handed to the follower outside the lock, in fusion order
+    private final ConcurrentLinkedQueue<Measurement> forFollower = new ConcurrentLinkedQueue<>();
+    private final Object followerLock = new Object();
+    // written under the lock, read by telemetry
+    private volatile int lastBatchSize = 0;
+    private volatile long batches = 0, measurements = 0;
+    private volatile long gateAccepted = 0, gateRejected = 0;
+    private volatile double lastMahalanobis = Double.NaN;
+    // sum of squared distance / degrees of freedom over gated corrections;  averages ~1 if the
+    // noise is modelled right
+    private volatile double normalisedInnovationSum = 0;
+
+    private int smoothingLagStates = SMOOTHING_LAG_STATES;
+    private long smoothingLagMillis = SMOOTHING_LAG_MILLIS;
+    private boolean lazySmoothing = false;
+    // time of a full-state correction whose backward pass hasn't been run yet (lazy mode only)
+    private long pendingSmoothingTime = Long.MIN_VALUE;
+
+    // written only under the lock, read from anywhere
+    private volatile PoseSnapshot snapshot;
+    private long version = 0;
+
+    private KalmanHistory history;
+    private KalmanCore core;
+    private int dimension;
+    private double[] mean, covariance;
+    // scratch for the backward pass
+    private double[] smoothedMean, smoothedCovariance, nextSmoothedMean, nextSmoothedCovariance;
+    private double[] filteredCovariance, nextFilteredCovariance;
+    // scratch for the velocity measurement each prediction makes
+    private final double[] measuredVelocity, measuredVelocityCovariance;
+    // scratch for robot-relative predictions
+    private double[] rotatedOutputToState;
 
-    private Primitive64Matrix mean, covariance;
+    /**
+     * Selects the maths used for each filter step.  Both use the same equations, so they agree
+     * to within rounding;  {@link #FIXED} is allocation-free, and is unrolled for 1 and 3 state
+     * filters.
+     */
+    public enum Engine {
+        OJALGO,
+        FIXED
+    }
 
     /**
      * @param initialState starting state
      */
     public ExtendedKalmanFilter(double... initialState) {
-        reset(initialState);
+        this(initialState, new double[initialState.length]);
     }
 
     public ExtendedKalmanFilter(double[] initialState, double... initialVariance) {
+        this(Engine.FIXED, initialState, initialVariance);
+    }
+
+    public ExtendedKalmanFilter(Engine engine, double[] initialState, double... initialVariance) {
+        this(engine, false, initialState, initialVariance);
+    }
+
+    /**
+     * @param estimateVelocity if set, the velocity (per second) of every state in
+     *                         {@code initialState} is estimated alongside it.  Predictions and
+     *                         corrections are still given in terms of the original states;  they
+     *                         are padded out to the velocity states automatically.
+     *                         <p>
+     *                         The velocity is held constant between predictions and changes at
+     *                         each one by white-noise acceleration.  A prediction's change in
+     *                         position, over the time since the one before it, is a measurement of
+     *                         that velocity;  the positions then move by velocity times that time,
+     *                         with the transition [[I, dt I], [0, I]].  The very first prediction,
+     *                         with nothing to take a time from, moves the positions directly.
+     */
+    public ExtendedKalmanFilter(Engine engine, boolean estimateVelocity, double[] initialState, double... initialVariance) {
+        this.engine = engine;
+        this.velocityStates = estimateVelocity;
+        this.positionDimension = initialState.length;
+        this.measuredVelocity = new double[positionDimension];
+        this.measuredVelocityCovariance = new double[positionDimension * positionDimension];
         reset(initialState, initialVariance);
     }
 
@@ -52,13 +154,48 @@ public class ExtendedKalmanFilter extends RollingVelocityCalculator implements T
         return Primitive64Matrix.FACTORY.rows(data);
     }
 
+    /**
+     * @param initialState for a filter estimating velocity this may be just the positions, in
+     *                     which case the velocity starts at zero
+     */
+    @Override
     public void reset(double[] initialState, double... initialVariance) {
+        if (velocityStates) {
+            if (initialState.length == positionDimension) {
+                initialState = Arrays.copyOf(initialState, 2 * positionDimension);
+                initialVariance = Arrays.copyOf(initialVariance, 2 * positionDimension);
+            } else if (initialState.length != 2 * positionDimension) {
+                throw new IllegalArgumentException("Initial state does not fit filter.");
+            }
+        }
+
         synchronized (lock) {
-            history.clear();
-            mean = Primitive64Matrix.FACTORY.column(initialState);
-            covariance = diagonal(initialVariance);
+            if (core == null || dimension != initialState.length) {
+                dimension = initialState.length;
+                core = KalmanCore.create(engine, dimension);
+                history = new KalmanHistory(dimension, MAX_HISTORY_SIZE);
+                mean = new double[dimension];
+                covariance = new double[dimension * dimension];
+                smoothedMean = new double[dimension];
+                nextSmoothedMean = new double[dimension];
+                smoothedCovariance = new double[dimension * dimension];
+                nextSmoothedCovariance = new double[dimension * dimension];
+                filteredCovariance = new double[dimension * dimension];
+                nextFilteredCovariance = new double[dimension * dimension];
+                rotatedOutputToState = new double[dimension * dimension];
+            }
 
-            history.add(new PostPredictionState(mean, covariance, null, false));
+            System.arraycopy(initialState, 0, mean, 0, dimension);
+            Arrays.fill(covariance, 0);
+            for (int i = 0; i < dimension; i++)
+                covariance[i * dimension + i] = initialVariance[i];
+
+            // anything still queued was measured against the old state
+            pending.clear();
+            history.clear(mean, covariance);
+            pendingSmoothingTime = Long.MIN_VALUE;
+            resetRollingVelocity();
+            publish();
         }
     }
 
@@ -66,189 +203,542 @@ public class ExtendedKalmanFilter extends RollingVelocityCalculator implements T
         reset(initialState, new double[initialState.length]);
     }
 
+    public Engine getEngine() {
+        return engine;
+    }
+
     public void forwardPass(int startingFrom) {
         synchronized (lock) {
 //            Log.d("EKF", "Replayed " + (history.size() - startingFrom - 1) + "measurements.");
-            var iter = history.listIterator(startingFrom);
-            var state = iter.next();
-            this.mean = state.getMean();
-            this.covariance = state.getCovariance();
+            history.load(startingFrom, mean, covariance);
+            long lastPrediction = velocityStates ? previousPredictionTime(startingFrom) : Long.MIN_VALUE;
+
+            for (int i = startingFrom + 1; i < history.size(); i++) {
+                if (history.isCorrection(i)) {
+                    if (passesGate(i))
+                        core.correct(mean, covariance, history.datum(i));
+                } else if (velocityStates) {
+                    double dt = (history.time(i) - lastPrediction) / 1000.;
+                    if (lastPrediction == Long.MIN_VALUE || dt <= 0 || !applyVelocityPrediction(history.datum(i), dt))
+                        applyPrediction(history.datum(i));
+                    lastPrediction = history.time(i);
+                } else {
+                    applyPrediction(history.datum(i));
+                }
 
-            while (iter.hasNext()) {
-                var idx = iter.nextIndex();
-                var measurement = iter.next();
+                history.store(i, mean, covariance);
+            }
+        }
+    }
 
-                if (measurement.isCorrection())
-                    correct(measurement.getDatum(), idx);
-                else
-                    predict(measurement.getDatum(), idx);
+    /**
+     * Applies a prediction to the current state.  A robot-relative one has its x and y rotated into
+     * the field by the heading of the state it's being applied to, so however late it's fused, or
+     * however often it's replayed, it's turned by the heading the filter had at that point in time.
+     */
+    private void applyPrediction(KalmanDatum datum) {
+        core.predict(mean, covariance, outputToState(datum), datum);
+    }
+
+    /**
+     * @return the prediction's output-to-state matrix (row-major), turned into the field by the
+     * current heading if the prediction is robot-relative
+     */
+    private double[] outputToState(KalmanDatum datum) {
+        var G = datum.outputToStateData();
+        if (!datum.robotRelative)
+            return G;
+
+        // rotate(heading) from MathUtil on the x and y rows of G
+        var rotated = rotatedOutputToState;
+        int n = dimension;
+        double cos = Math.cos(mean[2]), sin = Math.sin(mean[2]);
+        System.arraycopy(G, 0, rotated, 0, n * n);
+        for (int j = 0; j < n; j++) {
+            rotated[j] = cos * G[j] + sin * G[n + j];
+            rotated[n + j] = -sin * G[j] + cos * G[n + j];
+        }
+        return rotated;
+    }
+
+    /**
+     * Decides, the first time a gated correction is replayed, whether it is consistent enough
+     * with the estimate just before it to be applied.  The decision sticks through later replays
+     * so a correction can't flicker in and out as other data arrives.
+     */
+    private boolean passesGate(int index) {
+        var datum = history.datum(index);
+        if (!datum.isGated())
+            return true;
+
+        byte gate = history.gate(index);
+        if (gate == KalmanHistory.UNDECIDED) {
+            double distance = core.mahalanobisSquared(mean, covariance, datum);
+            // NaN means S isn't positive definite, so there's nothing to judge against
+            gate = distance > datum.gateThreshold ? KalmanHistory.REJECTED : KalmanHistory.ACCEPTED;
+            history.setGate(index, gate);
+
+            if (gate == KalmanHistory.ACCEPTED)
+                gateAccepted++;
+            else
+                gateRejected++;
+            if (!Double.isNaN(distance)) {
+                lastMahalanobis = distance;
+                normalisedInnovationSum += distance / datum.outputDimension;
             }
         }
+        return gate == KalmanHistory.ACCEPTED;
     }
 
-    @SuppressWarnings("ConstantConditions")
-    private void backwardPass(int before) {
-        synchronized (lock) {
-            var smoothedMeans = new HashMap<PostPredictionState, Primitive64Matrix>();
-            var smoothedVariances = new HashMap<PostPredictionState, Primitive64Matrix>();
+    /**
+     * @param degreesOfFreedom 1 to 3
+     * @param confidence       one of .95, .99 or .999
+     * @return the squared Mahalanobis distance a consistent measurement stays under with
+     * probability {@code confidence}
+     */
+    public static double chiSquaredThreshold(int degreesOfFreedom, double confidence) {
+        if (degreesOfFreedom < 1 || degreesOfFreedom > CHI_SQUARED.length)
+            throw new IllegalArgumentException("No chi-squared table for " + degreesOfFreedom + " degrees of freedom.");
 
-            history.forEach(n -> {
-                smoothedMeans.put(n, n.getMean());
-                smoothedVariances.put(n, n.getCovariance());
-            });
+        for (int i = 0; i < CHI_SQUARED_CONFIDENCES.length; i++)
+            if (CHI_SQUARED_CONFIDENCES[i] == confidence)
+                return CHI_SQUARED[degreesOfFreedom - 1][i];
 
-            if (!history.get(before).isCorrection())
-                throw new IllegalArgumentException("Can only smoothe starting from a correction.");
+        throw new IllegalArgumentException("No chi-squared table for confidence " + confidence + ".");
+    }
+
+    /**
+     * @return the time of the latest prediction at or before {@code index}, or
+     * {@link Long#MIN_VALUE} if there isn't one
+     */
+    private long previousPredictionTime(int index) {
+        for (int i = index; i > 0; i--)
+            if (!history.isCorrection(i))
+                return history.time(i);
+        return Long.MIN_VALUE;
+    }
 
-            assertThat(history.get(before).isCorrection() && history.get(before).getDatum().isFullState());
-            var latestCorrectionH = history.get(before).getDatum().getStateToOutput();
-
-            for (int t = before - 1; t >= 0; t--) {
-                PostPredictionState currentState = history.get(t);
-                var P_t = currentState.getCovariance();
-                PostPredictionState nextState = history.get(t + 1);
-                var P_t1 = nextState.getCovariance();
-
-//                Log.d("EKF", format("curr:  {0}, next:  {1}", currentState.isCorrection, nextState.isCorrection));
-
-                assertThat(P_t.isSquare());
-//                Log.d("EKF", format("latestCorrectionH:  {0}", Arrays.deepToString(latestCorrectionH.toRawCopy2D())));
-                assertThat(P_t.multiply(
-                        latestCorrectionH.transpose()
-                ).isSquare());
-                assertThat(P_t1.isSquare());
-
-                var L = P_t.multiply(
-                        latestCorrectionH.transpose()
-                ).multiply(P_t1.invert());
-
-                var X_t = currentState.getMean();
-                var X_tT = X_t.add(
-                        L.multiply(
-                                smoothedMeans.get(nextState).subtract(currentState.getMean())
-                        )
-                );
-
-                var P_tT = P_t.add(propagateError(L,
-                        smoothedVariances.get(nextState).subtract(P_t)
-                ));
-
-                smoothedMeans.put(currentState, X_tT);
-                smoothedVariances.put(currentState, P_tT);
+    /**
+     * Constant-velocity step for a prediction {@code dt} seconds after the one before it.  The
+     * velocity drifts by the acceleration noise, is corrected with the prediction's change in
+     * position over {@code dt} (with the prediction's own noise, scaled the same way), and the
+     * positions are then moved by it.
+     *
+     * @return false, with nothing applied, if the prediction's noise is degenerate, so it can be
+     * applied as a plain prediction instead
+     */
+    private boolean applyVelocityPrediction(KalmanDatum datum, double dt) {
+        int p = positionDimension, n = dimension;
+        var G = outputToState(datum);
+        var u = datum.meanData;
+        var Q = datum.covarianceData;
+
+        // z = G u / dt and its noise G Q G^T / dt^2, on the positions only
+        for (int i = 0; i < p; i++) {
+            double value = 0;
+            for (int j = 0; j < n; j++)
+                value += G[i * n + j] * u[j];
+            measuredVelocity[i] = value / dt;
+
+            for (int l = 0; l <= i; l++) {
+                double noise = 0;
+                for (int j = 0; j < n; j++)
+                    for (int k = 0; k < n; k++)
+                        noise += G[i * n + j] * Q[j * n + k] * G[l * n + k];
+                noise /= dt * dt;
+                measuredVelocityCovariance[i * p + l] = noise;
+                measuredVelocityCovariance[l * p + i] = noise;
             }
+            measuredVelocityCovariance[i * p + i] += isAngular(i) ? ANGULAR_VELOCITY_VARIANCE_FLOOR : LINEAR_VELOCITY_VARIANCE_FLOOR;
+        }
 
-            history.forEach(state -> {
-//                if (!state.getMean().equals(smoothedMeans.get(state)))
-//                    Log.d("EKF/smooth", format("before:  {0},  after:  {1}", state.getMean(), smoothedMeans.get(state)));
-                state.setMean(smoothedMeans.get(state));
-                state.setCovariance(smoothedVariances.get(state));
-            });
+        for (int k = 0; k < p; k++) {
+            int v = p + k;
+            covariance[v * n + v] += (isAngular(k) ? ANGULAR_ACCELERATION_VARIANCE : LINEAR_ACCELERATION_VARIANCE) * dt;
         }
+        if (!core.correctStates(mean, covariance, p, measuredVelocity, measuredVelocityCovariance, p))
+            return false;
+
+        // F = [[I, dt I], [0, I]]:  x += v dt, and P = F P F^T
+        for (int k = 0; k < p; k++)
+            mean[k] += mean[p + k] * dt;
+        // rows first (P = F P), then columns (P = P F^T)
+        for (int i = 0; i < p; i++)
+            for (int j = 0; j < n; j++)
+                covariance[i * n + j] += dt * covariance[(p + i) * n + j];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < p; j++)
+                covariance[i * n + j] += dt * covariance[i * n + p + j];
+        return true;
     }
 
-    public void predict(KalmanDatum datum) {
+    private boolean isAngular(int position) {
+        return positionDimension == 3 && position == 2;
+    }
+
+    /**
+     * Fixed-lag RTS smoothing backwards from a full-state correction.  Only the states within the
+     * configured lag of it are smoothed, and the results go into the history's smoothed slots, so
+     * the filtered estimate (and {@link #outputVector()}) is never touched.
+     */
+    private void backwardPass(int before) {
         synchronized (lock) {
-            int nextIndex = getInsertionIndex(datum);
+            if (!history.isCorrection(before))
+                throw new IllegalArgumentException("Can only smoothe starting from a correction.");
+
+            var latestCorrection = history.datum(before);
+            assertThat(latestCorrection.isFullState());
+
+            // the correction we start from is its own smoothed estimate
+            history.load(before, nextSmoothedMean, nextSmoothedCovariance);
+            System.arraycopy(nextSmoothedCovariance, 0, nextFilteredCovariance, 0, nextFilteredCovariance.length);
+            history.storeSmoothed(before, nextSmoothedMean, nextSmoothedCovariance);
 
-            pushState(nextIndex, new PostPredictionState(null, null, datum, false));
-            forwardPass(nextIndex - 1); // TODO:  might have introduced a bug changing this from - 2 to -1
+            long oldest = history.time(before) - smoothingLagMillis;
+            int last = Math.max(0, before - smoothingLagStates);
+            for (int t = before - 1; t >= last && history.time(t) >= oldest; t--) {
+                history.load(t, smoothedMean, smoothedCovariance);
+
+                // keep the filtered covariance around, since the step before this one needs it
+                System.arraycopy(smoothedCovariance, 0, filteredCovariance, 0, filteredCovariance.length);
+                core.smooth(smoothedMean, smoothedCovariance, nextFilteredCovariance, nextSmoothedMean, nextSmoothedCovariance, latestCorrection);
+                history.storeSmoothed(t, smoothedMean, smoothedCovariance);
+
+                var swap = nextFilteredCovariance;
+                nextFilteredCovariance = filteredCovariance;
+                filteredCovariance = swap;
+
+                swap = nextSmoothedMean;
+                nextSmoothedMean = smoothedMean;
+                smoothedMean = swap;
+
+                swap = nextSmoothedCovariance;
+                nextSmoothedCovariance = smoothedCovariance;
+                smoothedCovariance = swap;
+            }
         }
     }
 
-    private void predict(KalmanDatum datum, int index) {
+    /**
+     * Limits how far back each full-state correction is smoothed.  Smoothing stops at whichever
+     * limit is hit first.
+     *
+     * @param maxStates maximum number of history entries re-smoothed per correction
+     * @param maxMillis maximum age, relative to the correction, of a re-smoothed entry
+     */
+    public void setSmoothingLag(int maxStates, long maxMillis) {
         synchronized (lock) {
-            mean = mean.add(datum.outputToState().multiply(datum.getMean()));
-            covariance = covariance.add(propagateError(datum.outputToState(), datum.getCovariance()));
-
-            var state = new PostPredictionState(mean, covariance, datum, false);
-            history.set(index, state);
+            this.smoothingLagStates = maxStates;
+            this.smoothingLagMillis = maxMillis;
         }
     }
 
-    public void correct(KalmanDatum datum) {
+    /**
+     * In lazy mode, corrections only record that smoothing is needed, and the backward pass runs
+     * the next time the smoothed history is read.
+     */
+    public void setLazySmoothing(boolean lazySmoothing) {
         synchronized (lock) {
-            int nextIndex = getInsertionIndex(datum);
-
-            pushState(nextIndex, new PostPredictionState(null, null, datum, true));
-            // nextIndex - 1 because we need to calculate state for the newly-inserted datum
-            forwardPass(nextIndex - 1); // TODO:  might have introduced a bug changing this from - 2 to -1
-            var latest = findLatestCorrection();
-            if (latest != -1)
-                backwardPass(latest);
+            this.lazySmoothing = lazySmoothing;
+            if (!lazySmoothing)
+                runPendingSmoothing();
         }
     }
 
-    private int findLatestCorrection() {
+    private void runPendingSmoothing() {
+        if (pendingSmoothingTime == Long.MIN_VALUE)
+            return;
+
+        int i = history.insertionIndex(pendingSmoothingTime) - 1;
+        while (i > 0 && history.time(i) == pendingSmoothingTime && !isFullStateCorrection(i))
+            i--;
+        pendingSmoothingTime = Long.MIN_VALUE;
+
+        if (i > 0 && isFullStateCorrection(i))
+            backwardPass(i);
+    }
+
+    /**
+     * The smoothed estimate of the latest history entry at or before {@code time}, or the filtered
+     * one if it hasn't been smoothed.  Runs any pending lazy smoothing first.
+     *
+     * @return null if {@code time} is before the retained history
+     */
+    public double[] smoothedVectorAt(long time) {
         synchronized (lock) {
-            var iter = history.listIterator(history.size() - 1);
-            PostPredictionState thing = null;
-            while (iter.hasPrevious() && (thing = iter.previous()).getDatum() != null && !thing.isCorrection() && !thing.getDatum().isFullState())
-                ;
-            if (thing == null || !thing.isCorrection() || !thing.getDatum().isFullState())
-                return -1;
-            else
-                return iter.nextIndex();
+            runPendingSmoothing();
+
+            int i = history.insertionIndex(time) - 1;
+            if (i == 0 && time < history.time(0))
+                return null;
+
+            history.loadSmoothed(i, smoothedMean, smoothedCovariance);
+            return smoothedMean.clone();
         }
     }
 
-    private void correct(KalmanDatum datum, int index) {
+    /**
+     * Looks up the filtered estimate at {@code time}, interpolating linearly between the history
+     * entries either side of it.  Meant for pairing sensor data that arrives late (e.g. camera
+     * frames) with where the robot was when it was captured.
+     */
+    public PoseAtTime getPoseAt(long time) {
         synchronized (lock) {
-            var W = stateCorrectionCovariance(datum.getStateToOutput(), datum.getCovariance());
+            int last = history.size() - 1;
+            if (last == 0 || time > history.time(last)) {
+                var latest = snapshot;
+                return new PoseAtTime(time, last == 0 ? PoseAtTime.Status.NO_HISTORY : PoseAtTime.Status.AFTER_WINDOW,
+                        latest.getPose(), velocityStates ? latest.getVelocity() : velocityAt(history.time(last)));
+            }
 
-            var innovation = innovation(datum.getStateToOutput(), datum.getMean());
+            if (time < history.time(0)) {
+                history.load(0, smoothedMean, smoothedCovariance);
+                return new PoseAtTime(time, PoseAtTime.Status.BEFORE_WINDOW, Pose.of(smoothedMean),
+                        velocityStates ? velocityOf(smoothedMean) : velocityAt(history.time(1)));
+            }
 
-            mean = mean.add(W.multiply(innovation));
-            covariance = covariance.subtract(propagateError(W, propagateError(datum.getStateToOutput(), covariance)));
+            // history.time(i) <= time < history.time(i + 1), except at the very end
+            int i = history.insertionIndex(time) - 1;
+            var state = new double[dimension];
+            if (i == last || history.time(i) == Long.MIN_VALUE) {
+                // exactly the newest entry, or the base entry of a history that hasn't dropped
+                // anything since it was reset, which has no time of its own to interpolate from
+                for (int c = 0; c < dimension; c++)
+                    state[c] = history.mean(i, c);
+            } else {
+                double fraction = (double) (time - history.time(i)) / (history.time(i + 1) - history.time(i));
+                for (int c = 0; c < dimension; c++)
+                    state[c] = history.mean(i, c) + fraction * (history.mean(i + 1, c) - history.mean(i, c));
+            }
 
-            var state = new PostPredictionState(mean, covariance, datum, true);
-            history.set(index, state);
+            return new PoseAtTime(time, PoseAtTime.Status.IN_WINDOW, Pose.of(state),
+                    velocityStates ? velocityOf(state) : velocityAt(time));
         }
     }
 
-    private Primitive64Matrix stateCorrectionCovariance(Primitive64Matrix stateToOutput,
-                                                        Primitive64Matrix outputCovariance) {
+    /**
+     * @return the estimated velocity, per second, at {@code time} if this filter estimates
+     * velocity, and otherwise the average over the history entries within
+     * {@link #VELOCITY_SPAN_MILLIS} of {@code time}
+     */
+    public Pose getVelocityAt(long time) {
+        return getPoseAt(time).getVelocity();
+    }
+
+    private Pose velocityOf(double[] state) {
+        return Pose.of(Arrays.copyOfRange(state, positionDimension, 2 * positionDimension));
+    }
+
+    private Pose velocityAt(long time) {
+        if (history.size() < 3)
+            return Pose.ZERO;
+
+        int from = Math.max(1, history.insertionIndex(time - VELOCITY_SPAN_MILLIS / 2) - 1);
+        int to = Math.min(history.size() - 1, history.insertionIndex(time + VELOCITY_SPAN_MILLIS / 2));
+        long dt = history.time(to) - history.time(from);
+        if (dt <= 0)
+            return Pose.ZERO;
+
+        var velocity = new double[dimension];
+        for (int c = 0; c < dimension; c++)
+            velocity[c] = (history.mean(to, c) - history.mean(from, c)) / (dt / 1000.);
+        return Pose.of(velocity);
+    }
+
+    @Override
+    public void predict(KalmanDatum datum) {
+        submit(new Measurement(datum, false));
+    }
+
+    @Override
+    public void correct(KalmanDatum datum) {
+        submit(new Measurement(datum, true));
+    }
+
+    /**
+     * Queues a measurement.  If a fusion thread is attached this only wakes it up, so sensor
+     * threads never wait on filter maths;  otherwise the queue is drained on the calling thread.
+     */
+    private void submit(Measurement measurement) {
+        pending.add(measurement);
+
+        var thread = fusionThread;
+        if (thread == null)
+            fuse();
+        else
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Sets the thread {@link #predict(KalmanDatum)} and {@link #correct(KalmanDatum)} hand their
+     * data to.  That thread is expected to call {@link #fuse()} whenever it is unparked.  Pass
+     * null to go back to fusing on the submitting thread.
+     */
+    public void setFusionThread(Thread thread) {
+        this.fusionThread = thread;
+    }
+
+    /**
+     * Hands every measurement this filter fuses on to another estimator as well (e.g. a
+     * {@link ParticleFilter} being compared against this one), on the fusing thread.  Pass null to
+     * stop.
+     */
+    public void setFollower(PoseEstimator follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Applies every queued measurement.  The batch is sorted by time and inserted into the
+     * history together, then replayed once from the earliest insertion point, so a burst of late
+     * corrections costs one replay instead of one each.
+     * <p>
+     * The new snapshot is published before the follower sees the batch, and the follower is only
+     * called once the filter's lock is released.
+     *
+     * @return the number of measurements applied
+     */
+    public int fuse() {
+        int count = fuseBatch();
+        if (count > 0)
+            feedFollower();
+        return count;
+    }
+
+    private int fuseBatch() {
         synchronized (lock) {
-            assertThat(outputCovariance.isSquare() && outputCovariance.getDeterminant() != 0);
-            return covariance.multiply(stateToOutput.transpose()).multiply(propagateError(stateToOutput,
-                    covariance).add(outputCovariance).invert());
+            Measurement measurement;
+            while ((measurement = pending.poll()) != null)
+                batch.add(measurement);
+
+            if (batch.isEmpty())
+                return 0;
+
+            batch.sort(BY_TIME);
+
+            long newest = Math.max(batch.get(batch.size() - 1).datum.time, history.time(history.size() - 1));
+            history.removeOlderThan(newest - MOVING_WINDOW_MILLIS);
+            for (var m : batch)
+                history.insert(m.datum, m.correction);
+
+            // insertion and eviction both move indices around, so find the start again by time
+            replayFrom(history.firstIndexAtOrAfter(batch.get(0).datum.time) - 1);
+            publish();
+
+            // queued under the lock, so batches reach the follower in the order they were fused
+            if (follower != null)
+                forFollower.addAll(batch);
+
+            int count = batch.size();
+            batch.clear();
+            lastBatchSize = count;
+            batches++;
+            measurements += count;
+            return count;
         }
     }
 
-    private Primitive64Matrix innovation(Primitive64Matrix stateToOutput, Primitive64Matrix output) {
-        synchronized (lock) {
-            return output.subtract(stateToOutput.multiply(mean));
+    private void feedFollower() {
+        synchronized (followerLock) {
+            Measurement m;
+            while ((m = forFollower.poll()) != null) {
+                var follower = this.follower;
+                if (follower == null)
+                    continue;
+
+                if (m.correction)
+                    follower.correct(m.datum);
+                else
+                    follower.predict(m.datum);
+            }
         }
     }
 
-    private int getInsertionIndex(KalmanDatum datum) {
-        var iter = history.listIterator(history.size());
-        while (iter.previousIndex() >= 1 && iter.previous().getDatum().time > datum.time) ;
-        return iter.nextIndex();
+    /**
+     * Runs the forward pass, then re-smooths behind the latest full-state correction it went
+     * through (replaying invalidates the smoothed estimates of everything it touches).
+     */
+    private void replayFrom(int index) {
+        forwardPass(index);
+
+        int latest = findLatestCorrection(index + 1);
+        if (latest == -1)
+            return;
+
+        if (lazySmoothing)
+            pendingSmoothingTime = Math.max(pendingSmoothingTime, history.time(latest));
+        else
+            backwardPass(latest);
+    }
+
+    private boolean isFullStateCorrection(int index) {
+        return history.isCorrection(index)
+                && history.gate(index) != KalmanHistory.REJECTED
+                && history.datum(index).isFullState();
     }
 
-    private void pushState(int index, PostPredictionState state) {
+    /**
+     * @return the index of the newest full-state correction at or after {@code from}, or -1
+     */
+    private int findLatestCorrection(int from) {
         synchronized (lock) {
-            if (history.size() > MOVING_WINDOW_SIZE)
-                for (int i = 0; i < (history.size() - MOVING_WINDOW_SIZE); i++) {
-                    assertThat(history.get(i).getMean() != null);
-                    history.removeFirst();
-                }
+            for (int i = history.size() - 1; i >= Math.max(from, 1); i--)
+                if (isFullStateCorrection(i))
+                    return i;
 
-            history.add(index, state);
+            return -1;
         }
     }
 
+    /**
+     * Publishes the current filtered estimate as a new {@link PoseSnapshot}.
+     */
+    private void publish() {
+        var diagonal = new double[dimension];
+        for (int i = 0; i < dimension; i++)
+            diagonal[i] = covariance[i * dimension + i];
+
+        long time = history.size() > 1 ? history.time(history.size() - 1) : SystemClock.elapsedRealtime();
+        if (!velocityStates && dimension >= 3)
+            addRollingVelocitySample(time / 1000., mean[0], mean[1], mean[2]);
+        var velocity = velocityStates ? velocityOf(mean) : getRollingVelocity();
+        snapshot = new PoseSnapshot(++version, time, mean.clone(), diagonal, velocity);
+    }
+
+    @Override
+    public PoseSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the version of the latest published estimate; compare against
+     * {@link PoseSnapshot#getVersion()} to see if the pose has changed since it was read.
+     */
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
     public double[] outputVector() {
-        synchronized (lock) {
-            return mean.columns().next().toRawCopy1D();
-        }
+        return snapshot.toArray();
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public boolean isEstimatingVelocity() {
+        return velocityStates;
     }
 
     @Override
     public List<String> getTelemetryData() {
         return new ArrayList<>() {{
-            add(Arrays.toString(outputVector()));
-            add(covariance.toString());
+            add(snapshot.toString());
+            add("Last batch:  " + lastBatchSize + " (avg " + (batches == 0 ? 0 : (double) measurements / batches) + ")");
+            long gated = gateAccepted + gateRejected;
+            if (gated > 0) {
+                add("Gate:  " + gateAccepted + " accepted, " + gateRejected + " rejected");
+                add("Mahalanobis^2:  last " + lastMahalanobis + ", mean NIS/dof " + normalisedInnovationSum / gated);
+            }
         }};
     }
 
@@ -267,52 +757,25 @@ public class ExtendedKalmanFilter extends RollingVelocityCalculator implements T
         return Telemeter.super.getDashboardData();
     }
 
-    public KalmanDatumBuilder datumBuilder() {
-        return this.new KalmanDatumBuilder();
-    }
-
-    static class PostPredictionState {
-        private final KalmanDatum datum;
-        private final boolean correction;
-        private Primitive64Matrix mean;
-        private Primitive64Matrix covariance;
+    private static final class Measurement {
+        final KalmanDatum datum;
+        final boolean correction;
 
-
-        PostPredictionState(Primitive64Matrix mean, Primitive64Matrix covariance, KalmanDatum datum, boolean correction) {
-            this.setMean(mean);
-            this.setCovariance(covariance);
+        Measurement(KalmanDatum datum, boolean correction) {
             this.datum = datum;
             this.correction = correction;
         }
+    }
 
-        public Primitive64Matrix getMean() {
-            return mean;
-        }
-
-        public void setMean(Primitive64Matrix mean) {
-            this.mean = mean;
-        }
-
-        public Primitive64Matrix getCovariance() {
-            return covariance;
-        }
-
-        public void setCovariance(Primitive64Matrix covariance) {
-            this.covariance = covariance;
-        }
-
-        public KalmanDatum getDatum() {
-            return datum;
-        }
-
-        public boolean isCorrection() {
-            return correction;
-        }
+    public KalmanDatumBuilder datumBuilder() {
+        return this.new KalmanDatumBuilder();
     }
 
     @SuppressWarnings("unused")
     public class KalmanDatumBuilder {
         private Long time = SystemClock.elapsedRealtime();
+        private Double gateConfidence;
+        private boolean robotRelative = false;
         private Primitive64Matrix mean, covariance, stateToOutput;
 
         public KalmanDatumBuilder mean(double... mean) {
@@ -350,7 +813,27 @@ public class ExtendedKalmanFilter extends RollingVelocityCalculator implements T
             return this;
         }
 
-        private KalmanDatum build() {
+        /**
+         * Only apply this correction if its innovation is within the given chi-squared
+         * confidence region (.95, .99 or .999) of what the filter expects.
+         */
+        public KalmanDatumBuilder gate(double confidence) {
+            this.gateConfidence = confidence;
+            return this;
+        }
+
+        /**
+         * This prediction's x and y are in the robot's frame as of the previous prediction (like
+         * odometry's accumulated motion), and should be rotated into the field by the filter's
+         * own heading at that point rather than one read beforehand, which may be out of date by
+         * the time the prediction is fused.
+         */
+        public KalmanDatumBuilder robotRelative() {
+            this.robotRelative = true;
+            return this;
+        }
+
+        private KalmanDatum build(boolean prediction) {
             if (mean == null)
                 throw new IllegalArgumentException("Mean must not be null.");
             if (covariance == null)
@@ -367,22 +850,75 @@ public class ExtendedKalmanFilter extends RollingVelocityCalculator implements T
             if (!covariance.isSymmetric())
                 throw new IllegalArgumentException("Covariance matrix must be symmetrical.");
 
-            if (stateToOutput.getColDim() != ExtendedKalmanFilter.this.mean.getRowDim())
+            double gateThreshold = Double.POSITIVE_INFINITY;
+            if (gateConfidence != null) {
+                if (prediction)
+                    throw new IllegalArgumentException("Only corrections can be gated.");
+                gateThreshold = chiSquaredThreshold((int) mean.getRowDim(), gateConfidence);
+            }
+
+            if (robotRelative) {
+                if (!prediction)
+                    throw new IllegalArgumentException("Only predictions can be robot relative.");
+                if (positionDimension < 3)
+                    throw new IllegalArgumentException("Robot relative predictions need a heading state.");
+            }
+
+            if (velocityStates && stateToOutput.getColDim() == positionDimension)
+                padToVelocityStates(prediction);
+
+            if (stateToOutput.getColDim() != ExtendedKalmanFilter.this.dimension)
                 throw new IllegalArgumentException("State to output matrix does not fit filter.");
 
-            return new KalmanDatum(time, mean, covariance, stateToOutput);
+            return new KalmanDatum(time, mean, covariance, stateToOutput, gateThreshold, robotRelative);
+        }
+
+        /**
+         * Extends a datum given in terms of the positions only.  Corrections don't see the
+         * velocity states;  predictions leave them alone here (the filter turns them into a
+         * velocity measurement and transition, see {@link #applyVelocityPrediction}).
+         */
+        private void padToVelocityStates(boolean prediction) {
+            int p = positionDimension;
+            if (!prediction) {
+                var padded = new double[(int) stateToOutput.getRowDim()][2 * p];
+                for (int i = 0; i < padded.length; i++)
+                    for (int j = 0; j < p; j++)
+                        padded[i][j] = stateToOutput.doubleValue(i, j);
+                stateToOutput = Primitive64Matrix.FACTORY.rows(padded);
+                return;
+            }
+
+            if (mean.getRowDim() != p || !stateToOutput.isSquare())
+                return; // let predict() complain
+
+            var paddedMean = new double[2 * p];
+            var paddedCovariance = new double[2 * p][2 * p];
+            var paddedStateToOutput = new double[2 * p][2 * p];
+            for (int i = 0; i < p; i++) {
+                paddedMean[i] = mean.doubleValue(i, 0);
+                for (int j = 0; j < p; j++) {
+                    paddedCovariance[i][j] = covariance.doubleValue(i, j);
+                    paddedStateToOutput[i][j] = stateToOutput.doubleValue(i, j);
+                }
+                paddedStateToOutput[p + i][p + i] = 1;
+            }
+
+            mean = Primitive64Matrix.FACTORY.column(paddedMean);
+            covariance = Primitive64Matrix.FACTORY.rows(paddedCovariance);
+            stateToOutput = Primitive64Matrix.FACTORY.rows(paddedStateToOutput);
         }
 
         public void predict() {
-            var datum = build();
-            if (!(datum.isFullState() && mean.getRowDim() == ExtendedKalmanFilter.this.mean.getRowDim()))
+            var datum = build(true);
+            if (!(datum.isFullState() && mean.getRowDim() == ExtendedKalmanFilter.this.dimension))
                 throw new RuntimeException("Prediction data must be full-state.  Perhaps you could pass in 0 for the parameters you don't want to muck with.");
 
             ExtendedKalmanFilter.this.predict(datum);
         }
 
         public void correct() {
-            var datum = build();
+            var datum = build(false);
             ExtendedKalmanFilter.this.correct(datum);
         }
     }
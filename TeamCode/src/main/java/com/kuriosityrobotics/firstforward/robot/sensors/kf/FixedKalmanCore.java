@@ -0,0 +1,163 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import static com.kuriosityrobotics.firstforward.robot.Robot.assertThat;
+
+/**
+ * Allocation-free core.  Gives the same results as {@link OjalgoKalmanCore} (same equations, same
+ * order of operations where it matters), just without building ojalgo matrices for every step.
+ * <p>
+ * Everything is unrolled for the 3-state pose filter and the 1-state scalar filter.  Other sizes
+ * (e.g. the 6-state pose and velocity filter) predict with plain loops, and hand joint
+ * corrections and smoothing to an {@link OjalgoKalmanCore} since those need a general inverse.
+ * <p>
+ * Corrections with a diagonal covariance never get here (see {@link KalmanCore#correct}).  Of
+ * the rest, 3-state corrections with a 3 dimensional output are unrolled; anything else is handed
+ * off to an {@link OjalgoKalmanCore}.
+ */
+class FixedKalmanCore extends KalmanCore {
+    // scratch
+    private final double[] a, b, c, d;
+    private final double[] v, w;
+
+    private OjalgoKalmanCore fallback;
+
+    FixedKalmanCore(int dimension) {
+        super(dimension);
+        int size = Math.max(9, dimension * dimension);
+        a = new double[size];
+        b = new double[size];
+        c = new double[size];
+        d = new double[size];
+        v = new double[Math.max(3, dimension)];
+        w = new double[Math.max(3, dimension)];
+    }
+
+    private boolean unrolled() {
+        return dimension == 1 || dimension == 3;
+    }
+
+    private OjalgoKalmanCore fallback() {
+        if (fallback == null)
+            fallback = new OjalgoKalmanCore(dimension);
+        return fallback;
+    }
+
+    @Override
+    void predict(double[] mean, double[] covariance, double[] G, KalmanDatum datum) {
+        var u = datum.meanData;
+        var Q = datum.covarianceData;
+
+        if (dimension == 1) {
+            mean[0] += G[0] * u[0];
+            covariance[0] += G[0] * Q[0] * G[0];
+            return;
+        }
+
+        if (dimension != 3) {
+            int n = dimension;
+            SmallMatrices.multiply(G, u, v, n, n, 1);
+            for (int i = 0; i < n; i++)
+                mean[i] += v[i];
+
+            SmallMatrices.multiply(G, Q, a, n, n, n);
+            SmallMatrices.multiplyTransposed(a, G, b, n, n, n);
+            for (int i = 0; i < n * n; i++)
+                covariance[i] += b[i];
+            return;
+        }
+
+        SmallMatrices.multiplyVector3(G, u, v);
+        mean[0] += v[0];
+        mean[1] += v[1];
+        mean[2] += v[2];
+
+        SmallMatrices.multiply3(G, Q, a);
+        SmallMatrices.multiplyTransposed3(a, G, b);
+        for (int i = 0; i < 9; i++)
+            covariance[i] += b[i];
+    }
+
+    @Override
+    void correctJointly(double[] mean, double[] covariance, KalmanDatum datum) {
+        if (dimension == 3 && datum.outputDimension == 3)
+            correctFull(mean, covariance, datum.stateToOutputData, datum.meanData, datum.covarianceData);
+        else
+            fallback().correctJointly(mean, covariance, datum);
+    }
+
+    private void correctFull(double[] mean, double[] P, double[] H, double[] z, double[] R) {
+        SmallMatrices.multiplyTransposed3(P, H, a); // a = P * H^T
+        SmallMatrices.multiply3(H, a, b); // b = H * P * H^T
+
+        for (int i = 0; i < 9; i++)
+            c[i] = b[i] + R[i]; // c = S
+
+        double det = SmallMatrices.invert3(c, d); // d = S^-1
+        assertThat(det != 0);
+        SmallMatrices.multiply3(a, d, c); // c = W
+
+        SmallMatrices.multiplyVector3(H, mean, v);
+        v[0] = z[0] - v[0];
+        v[1] = z[1] - v[1];
+        v[2] = z[2] - v[2];
+        SmallMatrices.multiplyVector3(c, v, w);
+        mean[0] += w[0];
+        mean[1] += w[1];
+        mean[2] += w[2];
+
+        // Joseph form, like the sequential path:  P = (I - W H) P (I - W H)^T + W R W^T
+        SmallMatrices.multiply3(c, H, d);
+        for (int i = 0; i < 9; i++)
+            d[i] = -d[i];
+        d[0] += 1;
+        d[4] += 1;
+        d[8] += 1; // d = I - W H
+        SmallMatrices.multiply3(d, P, a);
+        SmallMatrices.multiplyTransposed3(a, d, b); // b = (I - W H) P (I - W H)^T
+        SmallMatrices.multiply3(c, R, a);
+        SmallMatrices.multiplyTransposed3(a, c, d); // d = W R W^T
+        for (int i = 0; i < 9; i++)
+            P[i] = b[i] + d[i];
+    }
+
+    @Override
+    void smooth(double[] mean, double[] covariance,
+                double[] nextCovariance,
+                double[] nextSmoothedMean, double[] nextSmoothedCovariance,
+                KalmanDatum latestCorrection) {
+        var H = latestCorrection.stateToOutputData;
+
+        if (dimension == 1) {
+            double L = covariance[0] * H[0] / nextCovariance[0];
+            mean[0] += L * (nextSmoothedMean[0] - mean[0]);
+            covariance[0] += L * (nextSmoothedCovariance[0] - covariance[0]) * L;
+            return;
+        }
+
+        if (!unrolled() || latestCorrection.outputDimension != 3) {
+            fallback().smooth(mean, covariance, nextCovariance, nextSmoothedMean, nextSmoothedCovariance, latestCorrection);
+            return;
+        }
+
+        // L = P_t * H^T * P_t1^-1
+        SmallMatrices.multiplyTransposed3(covariance, H, a);
+        double det = SmallMatrices.invert3(nextCovariance, b);
+        assertThat(det != 0);
+        SmallMatrices.multiply3(a, b, c); // c = L
+
+        v[0] = nextSmoothedMean[0] - mean[0];
+        v[1] = nextSmoothedMean[1] - mean[1];
+        v[2] = nextSmoothedMean[2] - mean[2];
+        SmallMatrices.multiplyVector3(c, v, w);
+        mean[0] += w[0];
+        mean[1] += w[1];
+        mean[2] += w[2];
+
+        for (int i = 0; i < 9; i++)
+            d[i] = nextSmoothedCovariance[i] - covariance[i];
+        SmallMatrices.multiply3(c, d, a);
+        SmallMatrices.multiplyTransposed3(a, c, b); // b = L * (P_t1^s - P_t) * L^T
+        for (int i = 0; i < 9; i++)
+            covariance[i] += b[i];
+    }
+}
@@ -0,0 +1,259 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import java.util.Arrays;
+
+/**
+ * The maths behind a single filter step, separated from the history/replay bookkeeping in
+ * {@link ExtendedKalmanFilter}.  Means are column vectors and covariances are row-major
+ * {@code double[]}s; every method updates them in place.
+ * <p>
+ * Cores keep their own scratch space, so they must only be used under the filter's lock.
+ */
+abstract class KalmanCore {
+    final int dimension;
+
+    // scratch for sequential corrections
+    private final double[] ph, gain, whitenedRow;
+    // scratch for gating and whitening, grown to fit the largest correction seen
+    private double[] innovationCovariance = new double[0], innovation = new double[0];
+    private double[] whitening = new double[0], inverseRow = new double[0];
+
+    KalmanCore(int dimension) {
+        this.dimension = dimension;
+        this.ph = new double[dimension];
+        this.gain = new double[dimension];
+        this.whitenedRow = new double[dimension];
+    }
+
+    static KalmanCore create(ExtendedKalmanFilter.Engine engine, int dimension) {
+        if (engine == ExtendedKalmanFilter.Engine.FIXED)
+            return new FixedKalmanCore(dimension);
+
+        return new OjalgoKalmanCore(dimension);
+    }
+
+    /**
+     * mean += G * u, covariance += G * Q * G^T, with the datum's own G
+     */
+    final void predict(double[] mean, double[] covariance, KalmanDatum datum) {
+        predict(mean, covariance, datum.outputToStateData(), datum);
+    }
+
+    /**
+     * mean += G * u, covariance += G * Q * G^T, with G (row-major) given instead of taken from
+     * the datum, for predictions whose G depends on the state (see {@link KalmanDatum#robotRelative})
+     */
+    abstract void predict(double[] mean, double[] covariance, double[] G, KalmanDatum datum);
+
+    /**
+     * EKF measurement update using {@code datum}'s H matrix.  Corrections with a diagonal
+     * covariance (the IMU's heading, Vuforia's x/y/heading) are applied one output at a time;
+     * anything else goes through {@link #correctJointly}.
+     */
+    final void correct(double[] mean, double[] covariance, KalmanDatum datum) {
+        if (datum.diagonalCovariance)
+            correctSequentially(mean, covariance, datum);
+        else
+            correctJointly(mean, covariance, datum);
+    }
+
+    /**
+     * Standard EKF measurement update using {@code datum}'s H matrix, all outputs at once.  The
+     * covariance uses the Joseph form, the same as {@link #correctSequentially}, so a correction
+     * gives the same posterior whichever path it takes.
+     */
+    abstract void correctJointly(double[] mean, double[] covariance, KalmanDatum datum);
+
+    /**
+     * Since the outputs' noise is independent, applying them one after the other as scalar
+     * measurements gives the same result as applying them together, and each one only needs a
+     * division instead of a matrix inversion.  The covariance uses the Joseph form, which keeps it
+     * symmetric and positive semi-definite despite rounding.
+     */
+    private void correctSequentially(double[] mean, double[] P, KalmanDatum datum) {
+        var H = datum.stateToOutputData;
+        var z = datum.meanData;
+        var R = datum.covarianceData;
+        int outputs = datum.outputDimension;
+
+        for (int k = 0; k < outputs; k++)
+            correctScalar(mean, P, H, k * dimension, z[k], R[k * outputs + k]);
+    }
+
+    /**
+     * Scalar Joseph-form update from z = h x + noise, where h is the {@code dimension} entries of
+     * {@code H} from {@code offset}.
+     */
+    private void correctScalar(double[] mean, double[] P, double[] H, int offset, double z, double r) {
+        int n = dimension;
+
+        // ph = P * h^T, s = h * P * h^T + r
+        double s = r, predicted = 0;
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int j = 0; j < n; j++)
+                sum += P[i * n + j] * H[offset + j];
+            ph[i] = sum;
+            s += H[offset + i] * sum;
+            predicted += H[offset + i] * mean[i];
+        }
+        if (s == 0)
+            return; // no uncertainty on either side, nothing to learn
+
+        double innovation = z - predicted;
+        for (int i = 0; i < n; i++) {
+            gain[i] = ph[i] / s;
+            mean[i] += gain[i] * innovation;
+        }
+
+        // P = (I - K h) P (I - K h)^T + K r K^T = P - K ph^T - ph K^T + s K K^T
+        for (int i = 0; i < n; i++)
+            for (int j = i; j < n; j++) {
+                double value = P[i * n + j] - gain[i] * ph[j] - ph[i] * gain[j] + s * gain[i] * gain[j];
+                P[i * n + j] = value;
+                P[j * n + i] = value;
+            }
+    }
+
+    /**
+     * Joint update from a direct measurement {@code z} of the {@code m} states starting at
+     * {@code first}, with correlated noise {@code R} (row-major, m x m).  The measurement is
+     * whitened by the Cholesky factor of R, which leaves m independent unit-variance outputs that
+     * are applied one at a time, with the same posterior as a joint update.
+     *
+     * @return false, and nothing is applied, if R isn't positive definite
+     */
+    final boolean correctStates(double[] mean, double[] P, int first, double[] z, double[] R, int m) {
+        if (inverseRow.length < m) {
+            whitening = new double[m * m];
+            inverseRow = new double[m];
+        }
+        var L = whitening;
+
+        // R = L L^T, lower triangle
+        for (int j = 0; j < m; j++) {
+            double diagonal = R[j * m + j];
+            for (int k = 0; k < j; k++)
+                diagonal -= L[j * m + k] * L[j * m + k];
+            if (!(diagonal > 0))
+                return false;
+            diagonal = Math.sqrt(diagonal);
+            L[j * m + j] = diagonal;
+
+            for (int i = j + 1; i < m; i++) {
+                double value = R[i * m + j];
+                for (int k = 0; k < j; k++)
+                    value -= L[i * m + k] * L[j * m + k];
+                L[i * m + j] = value / diagonal;
+            }
+        }
+
+        // L^-1, in place, a row at a time from the top:  row i of L^-1 needs row i of L and the
+        // rows of L^-1 above it, which is exactly what's left in the array by then
+        for (int i = 0; i < m; i++) {
+            double diagonal = L[i * m + i];
+            for (int c = 0; c < i; c++) {
+                double value = 0;
+                for (int k = c; k < i; k++)
+                    value -= L[i * m + k] * L[k * m + c];
+                inverseRow[c] = value / diagonal;
+            }
+            inverseRow[i] = 1 / diagonal;
+            System.arraycopy(inverseRow, 0, L, i * m, i + 1);
+        }
+
+        // each row of L^-1 [0 I 0] against the matching entry of L^-1 z has unit noise
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(whitenedRow, 0);
+            double whitened = 0;
+            for (int c = 0; c <= i; c++) {
+                whitenedRow[first + c] = L[i * m + c];
+                whitened += L[i * m + c] * z[c];
+            }
+            correctScalar(mean, P, whitenedRow, 0, whitened, 1);
+        }
+        return true;
+    }
+
+    /**
+     * Squared Mahalanobis distance of {@code datum}'s innovation, y^T S^-1 y, where
+     * y = z - H x and S = H P H^T + R.  For a consistent filter this is chi-squared distributed
+     * with as many degrees of freedom as the datum has outputs.
+     *
+     * @return NaN if S isn't positive definite
+     */
+    final double mahalanobisSquared(double[] mean, double[] P, KalmanDatum datum) {
+        var H = datum.stateToOutputData;
+        var z = datum.meanData;
+        var R = datum.covarianceData;
+        int n = dimension, m = datum.outputDimension;
+
+        if (innovation.length < m) {
+            innovation = new double[m];
+            innovationCovariance = new double[m * m];
+        }
+        var y = innovation;
+        var S = innovationCovariance;
+
+        for (int i = 0; i < m; i++) {
+            double predicted = 0;
+            for (int k = 0; k < n; k++)
+                predicted += H[i * n + k] * mean[k];
+            y[i] = z[i] - predicted;
+
+            for (int j = 0; j <= i; j++) {
+                double sum = R[i * m + j];
+                for (int k = 0; k < n; k++) {
+                    double hk = H[i * n + k];
+                    if (hk == 0)
+                        continue;
+                    for (int l = 0; l < n; l++)
+                        sum += hk * P[k * n + l] * H[j * n + l];
+                }
+                S[i * m + j] = sum;
+            }
+        }
+
+        // S = L L^T in place (lower triangle), then solve L w = y;  the distance is |w|^2
+        for (int j = 0; j < m; j++) {
+            double diagonal = S[j * m + j];
+            for (int k = 0; k < j; k++)
+                diagonal -= S[j * m + k] * S[j * m + k];
+            if (diagonal <= 0)
+                return Double.NaN;
+            diagonal = Math.sqrt(diagonal);
+            S[j * m + j] = diagonal;
+
+            for (int i = j + 1; i < m; i++) {
+                double value = S[i * m + j];
+                for (int k = 0; k < j; k++)
+                    value -= S[i * m + k] * S[j * m + k];
+                S[i * m + j] = value / diagonal;
+            }
+        }
+
+        double distance = 0;
+        for (int i = 0; i < m; i++) {
+            double value = y[i];
+            for (int k = 0; k < i; k++)
+                value -= S[i * m + k] * y[k];
+            y[i] = value / S[i * m + i];
+            distance += y[i] * y[i];
+        }
+        return distance;
+    }
+
+    /**
+     * One step of the backward (smoothing) pass.  {@code mean} and {@code covariance} hold the
+     * filtered estimate for time t and are overwritten with the smoothed one.
+     *
+     * @param nextCovariance         filtered covariance at t + 1
+     * @param nextSmoothedMean       smoothed mean at t + 1
+     * @param nextSmoothedCovariance smoothed covariance at t + 1
+     * @param latestCorrection       the full-state correction the pass started from
+     */
+    abstract void smooth(double[] mean, double[] covariance,
+                         double[] nextCovariance,
+                         double[] nextSmoothedMean, double[] nextSmoothedCovariance,
+                         KalmanDatum latestCorrection);
+}
@@ -13,19 +13,107 @@ public class KalmanDatum {
      */
     protected final Primitive64Matrix stateToOutput;
 
+    // primitive, row-major copies of the above so the filter cores never touch ojalgo during a replay
+    final int outputDimension, stateDimension;
+    final double[] meanData;
+    final double[] covarianceData;
+    final double[] stateToOutputData;
+    // if so the outputs are independent, and can be applied one at a time as scalar updates
+    final boolean diagonalCovariance;
+    // corrections whose squared Mahalanobis distance is above this are thrown out
+    final double gateThreshold;
+    /**
+     * For a prediction, whether its x and y are in the robot's frame as of the state it's applied
+     * to, so the filter rotates them by its heading (state 2) there.  G is applied after that
+     * rotation.
+     */
+    final boolean robotRelative;
+    private final boolean fullState;
+
+    private Primitive64Matrix outputToState;
+    private double[] outputToStateData;
+
     /**
      * @param stateToOutput For a prediction, this is the inverse of matrix G (for example, undoes rotation applied to convert odometry to global)
      *                      For a correction, this is matrix H
      */
     public KalmanDatum(long time, Primitive64Matrix mean, Primitive64Matrix covariance, Primitive64Matrix stateToOutput) {
+        this(time, mean, covariance, stateToOutput, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param gateThreshold for a correction, the largest squared Mahalanobis distance of its
+     *                      innovation for which it is still applied
+     */
+    public KalmanDatum(long time, Primitive64Matrix mean, Primitive64Matrix covariance, Primitive64Matrix stateToOutput, double gateThreshold) {
+        this(time, mean, covariance, stateToOutput, gateThreshold, false);
+    }
+
+    /**
+     * @param robotRelative for a prediction, whether its x and y are in the robot's frame (see
+     *                      {@link #robotRelative})
+     */
+    public KalmanDatum(long time, Primitive64Matrix mean, Primitive64Matrix covariance, Primitive64Matrix stateToOutput, double gateThreshold, boolean robotRelative) {
+        this.gateThreshold = gateThreshold;
+        this.robotRelative = robotRelative;
         this.mean = mean;
         this.covariance = covariance;
         this.stateToOutput = stateToOutput;
         this.time = time;
+
+        this.outputDimension = (int) stateToOutput.getRowDim();
+        this.stateDimension = (int) stateToOutput.getColDim();
+        this.meanData = mean.toRawCopy1D();
+        this.covarianceData = rowMajor(covariance);
+        this.stateToOutputData = rowMajor(stateToOutput);
+        this.diagonalCovariance = isDiagonal(covarianceData, (int) covariance.getRowDim());
+        this.fullState = stateToOutput.isSquare()
+                && stateToOutput.getRank() == stateToOutput.getMinDim();
     }
 
-    public final Primitive64Matrix outputToState() {
-        return stateToOutput.invert();
+    private static boolean isDiagonal(double[] data, int size) {
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                if (i != j && data[i * size + j] != 0)
+                    return false;
+        return true;
+    }
+
+    private static double[] rowMajor(Primitive64Matrix matrix) {
+        int rows = (int) matrix.getRowDim(), cols = (int) matrix.getColDim();
+        var data = new double[rows * cols];
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++)
+                data[i * cols + j] = matrix.doubleValue(i, j);
+        return data;
+    }
+
+    /**
+     * The inverse of {@link #getStateToOutput()}.  This is computed once and cached, since it is
+     * needed again every time the datum is replayed.
+     */
+    public final synchronized Primitive64Matrix outputToState() {
+        if (outputToState == null)
+            outputToState = stateToOutput.invert();
+        return outputToState;
+    }
+
+    /**
+     * Row-major copy of {@link #outputToState()}, computed without ojalgo for the 1 and 3 state cases.
+     */
+    final synchronized double[] outputToStateData() {
+        if (outputToStateData == null) {
+            if (stateDimension == 3 && outputDimension == 3) {
+                outputToStateData = new double[9];
+                if (SmallMatrices.invert3(stateToOutputData, outputToStateData) == 0)
+                    throw new ArithmeticException("stateToOutput is singular");
+            } else if (stateDimension == 1 && outputDimension == 1) {
+                outputToStateData = new double[]{1 / stateToOutputData[0]};
+            } else {
+                outputToStateData = rowMajor(outputToState());
+            }
+        }
+        return outputToStateData;
     }
 
     public Primitive64Matrix getStateToOutput() {
@@ -41,8 +129,11 @@ public class KalmanDatum {
     }
 
     public boolean isFullState() {
-        return stateToOutput.isSquare()
-                && stateToOutput.getRank() == stateToOutput.getMinDim();
+        return fullState;
+    }
+
+    public boolean isGated() {
+        return gateThreshold != Double.POSITIVE_INFINITY;
     }
 
     @Override
@@ -52,6 +143,7 @@ public class KalmanDatum {
                 ", mean=" + mean +
                 ", covariance=" + covariance +
                 ", stateToOutput=" + stateToOutput +
+                (isGated() ? ", gateThreshold=" + gateThreshold : "") +
                 '}';
     }
 }
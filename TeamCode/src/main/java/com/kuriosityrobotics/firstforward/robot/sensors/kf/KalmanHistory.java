@@ -0,0 +1,238 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+/**
+ * Time-ordered record of every datum the filter has seen along with the state estimate right
+ * after it was applied, stored in a circular buffer of parallel primitive arrays.
+ * <p>
+ * Each entry also has a slot for its smoothed estimate, which is kept apart from the filtered one
+ * so smoothing never feeds back into replays.  Writing a new filtered state invalidates the
+ * smoothed one.
+ * <p>
+ * Entry 0 is always the base state the window starts from; it is never replayed.  Lookups by
+ * index are O(1), finding where a datum belongs is a binary search on the timestamps, and
+ * inserting only moves the entries that come after it (usually none, or a couple for a late
+ * vision frame).
+ * <p>
+ * Not thread-safe; the filter guards it with its lock.
+ */
+final class KalmanHistory {
+    // whether a gated correction was applied, decided the first time it's replayed
+    static final byte UNDECIDED = 0, ACCEPTED = 1, REJECTED = 2;
+
+    private final int capacity, mask;
+    private final int dimension, covarianceSize;
+
+    private final long[] times;
+    private final KalmanDatum[] data;
+    private final boolean[] corrections;
+    private final byte[] gates;
+    private final double[] means;
+    private final double[] covariances;
+    private final boolean[] smoothed;
+    private final double[] smoothedMeans;
+    private final double[] smoothedCovariances;
+
+    private int head = 0, size = 0;
+
+    /**
+     * @param capacity maximum number of entries, rounded up to a power of two
+     */
+    KalmanHistory(int dimension, int capacity) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.dimension = dimension;
+        this.covarianceSize = dimension * dimension;
+
+        this.times = new long[cap];
+        this.data = new KalmanDatum[cap];
+        this.corrections = new boolean[cap];
+        this.gates = new byte[cap];
+        this.means = new double[cap * dimension];
+        this.covariances = new double[cap * covarianceSize];
+        this.smoothed = new boolean[cap];
+        this.smoothedMeans = new double[cap * dimension];
+        this.smoothedCovariances = new double[cap * covarianceSize];
+    }
+
+    private int physical(int index) {
+        return (head + index) & mask;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    void clear(double[] mean, double[] covariance) {
+        for (int i = 0; i < size; i++)
+            data[physical(i)] = null;
+
+        head = 0;
+        size = 1;
+        times[0] = Long.MIN_VALUE;
+        data[0] = null;
+        corrections[0] = false;
+        gates[0] = UNDECIDED;
+        store(0, mean, covariance);
+    }
+
+    long time(int index) {
+        return times[physical(index)];
+    }
+
+    KalmanDatum datum(int index) {
+        return data[physical(index)];
+    }
+
+    boolean isCorrection(int index) {
+        return corrections[physical(index)];
+    }
+
+    byte gate(int index) {
+        return gates[physical(index)];
+    }
+
+    void setGate(int index, byte gate) {
+        gates[physical(index)] = gate;
+    }
+
+    void store(int index, double[] mean, double[] covariance) {
+        int p = physical(index);
+        System.arraycopy(mean, 0, means, p * dimension, dimension);
+        System.arraycopy(covariance, 0, covariances, p * covarianceSize, covarianceSize);
+        smoothed[p] = false;
+    }
+
+    void storeSmoothed(int index, double[] mean, double[] covariance) {
+        int p = physical(index);
+        System.arraycopy(mean, 0, smoothedMeans, p * dimension, dimension);
+        System.arraycopy(covariance, 0, smoothedCovariances, p * covarianceSize, covarianceSize);
+        smoothed[p] = true;
+    }
+
+    boolean isSmoothed(int index) {
+        return smoothed[physical(index)];
+    }
+
+    /**
+     * Loads the smoothed estimate if there is a valid one, and the filtered one otherwise.
+     */
+    void loadSmoothed(int index, double[] mean, double[] covariance) {
+        int p = physical(index);
+        if (!smoothed[p]) {
+            load(index, mean, covariance);
+            return;
+        }
+        System.arraycopy(smoothedMeans, p * dimension, mean, 0, dimension);
+        System.arraycopy(smoothedCovariances, p * covarianceSize, covariance, 0, covarianceSize);
+    }
+
+    void load(int index, double[] mean, double[] covariance) {
+        int p = physical(index);
+        System.arraycopy(means, p * dimension, mean, 0, dimension);
+        System.arraycopy(covariances, p * covarianceSize, covariance, 0, covarianceSize);
+    }
+
+    double mean(int index, int component) {
+        return means[physical(index) * dimension + component];
+    }
+
+    double covariance(int index, int row, int col) {
+        return covariances[physical(index) * covarianceSize + row * dimension + col];
+    }
+
+    /**
+     * @return the index a datum stamped {@code time} should be inserted at:  just after the last
+     * entry with a time at or before it, and never before the base state.
+     */
+    int insertionIndex(long time) {
+        int lo = 1, hi = size; // answer is in [lo, hi]
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[physical(mid)] > time)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first entry stamped at or after {@code time}, and never the base
+     * state.  Replaying from the entry before it covers every entry that could depend on a datum
+     * stamped {@code time}.
+     */
+    int firstIndexAtOrAfter(long time) {
+        int lo = 1, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[physical(mid)] >= time)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Inserts a datum in time order.  Its state is left unset; the caller is expected to replay
+     * from the entry before it.  If the buffer is full the oldest entry is dropped first.
+     *
+     * @return the index the datum was inserted at
+     */
+    int insert(KalmanDatum datum, boolean correction) {
+        if (size == capacity)
+            removeOldest();
+
+        int index = insertionIndex(datum.time);
+
+        // shift everything after the insertion point up by one
+        for (int i = size; i > index; i--) {
+            int to = physical(i), from = physical(i - 1);
+            times[to] = times[from];
+            data[to] = data[from];
+            corrections[to] = corrections[from];
+            gates[to] = gates[from];
+            System.arraycopy(means, from * dimension, means, to * dimension, dimension);
+            System.arraycopy(covariances, from * covarianceSize, covariances, to * covarianceSize, covarianceSize);
+            smoothed[to] = smoothed[from];
+            System.arraycopy(smoothedMeans, from * dimension, smoothedMeans, to * dimension, dimension);
+            System.arraycopy(smoothedCovariances, from * covarianceSize, smoothedCovariances, to * covarianceSize, covarianceSize);
+        }
+
+        int p = physical(index);
+        times[p] = datum.time;
+        data[p] = datum;
+        corrections[p] = correction;
+        gates[p] = UNDECIDED;
+        smoothed[p] = false;
+        size++;
+
+        return index;
+    }
+
+    /**
+     * Drops the base state, promoting entry 1 to be the new base.
+     */
+    void removeOldest() {
+        if (size <= 1)
+            return;
+
+        data[head] = null;
+        head = (head + 1) & mask;
+        size--;
+    }
+
+    /**
+     * Drops entries so the oldest datum left is no older than {@code cutoff}.  The base state
+     * is never removed.
+     */
+    void removeOlderThan(long cutoff) {
+        while (size > 1 && time(1) < cutoff)
+            removeOldest();
+    }
+}
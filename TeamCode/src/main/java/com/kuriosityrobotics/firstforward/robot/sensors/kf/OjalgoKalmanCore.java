@@ -0,0 +1,82 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import static com.kuriosityrobotics.firstforward.robot.Robot.assertThat;
+import static com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter.propagateError;
+
+import org.ojalgo.matrix.Primitive64Matrix;
+
+/**
+ * General-purpose core backed by ojalgo.  Works for any dimension, but allocates a handful of
+ * matrices per step; {@link FixedKalmanCore} is preferred where it applies.
+ */
+class OjalgoKalmanCore extends KalmanCore {
+    OjalgoKalmanCore(int dimension) {
+        super(dimension);
+    }
+
+    private static Primitive64Matrix column(double[] data) {
+        return Primitive64Matrix.FACTORY.column(data);
+    }
+
+    private Primitive64Matrix square(double[] data) {
+        var rows = new double[dimension][dimension];
+        for (int i = 0; i < dimension; i++)
+            System.arraycopy(data, i * dimension, rows[i], 0, dimension);
+        return Primitive64Matrix.FACTORY.rows(rows);
+    }
+
+    private void store(Primitive64Matrix column, double[] out) {
+        for (int i = 0; i < dimension; i++)
+            out[i] = column.doubleValue(i, 0);
+    }
+
+    private void storeSquare(Primitive64Matrix matrix, double[] out) {
+        for (int i = 0; i < dimension; i++)
+            for (int j = 0; j < dimension; j++)
+                out[i * dimension + j] = matrix.doubleValue(i, j);
+    }
+
+    @Override
+    void predict(double[] mean, double[] covariance, double[] G, KalmanDatum datum) {
+        var outputToState = square(G);
+        var newMean = column(mean).add(outputToState.multiply(datum.getMean()));
+        var newCovariance = square(covariance).add(propagateError(outputToState, datum.getCovariance()));
+
+        store(newMean, mean);
+        storeSquare(newCovariance, covariance);
+    }
+
+    @Override
+    void correctJointly(double[] mean, double[] covariance, KalmanDatum datum) {
+        var H = datum.getStateToOutput();
+        var P = square(covariance);
+        var x = column(mean);
+
+        assertThat(datum.getCovariance().isSquare() && datum.getCovariance().getDeterminant() != 0);
+        var W = P.multiply(H.transpose()).multiply(propagateError(H, P).add(datum.getCovariance()).invert());
+        var innovation = datum.getMean().subtract(H.multiply(x));
+
+        // Joseph form, like the sequential path:  P = (I - W H) P (I - W H)^T + W R W^T
+        var I = Primitive64Matrix.FACTORY.makeIdentity(dimension);
+        store(x.add(W.multiply(innovation)), mean);
+        storeSquare(propagateError(I.subtract(W.multiply(H)), P).add(propagateError(W, datum.getCovariance())), covariance);
+    }
+
+    @Override
+    void smooth(double[] mean, double[] covariance,
+                double[] nextCovariance,
+                double[] nextSmoothedMean, double[] nextSmoothedCovariance,
+                KalmanDatum latestCorrection) {
+        var P_t = square(covariance);
+        var X_t = column(mean);
+
+        var L = P_t.multiply(latestCorrection.getStateToOutput().transpose())
+                .multiply(square(nextCovariance).invert());
+
+        var X_tT = X_t.add(L.multiply(column(nextSmoothedMean).subtract(X_t)));
+        var P_tT = P_t.add(propagateError(L, square(nextSmoothedCovariance).subtract(P_t)));
+
+        store(X_tT, mean);
+        storeSquare(P_tT, covariance);
+    }
+}
@@ -0,0 +1,357 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.angleWrap;
+
+import com.kuriosityrobotics.firstforward.robot.LocationProvider;
+import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monte Carlo localizer over (x, y, heading), for comparing against {@link ExtendedKalmanFilter}
+ * where the error isn't Gaussian (wall rides, a Vuforia fix off the wrong target).  It takes the
+ * same data as the Kalman filter, and is usually fed by it;  see
+ * {@link ExtendedKalmanFilter#setFollower(PoseEstimator)}.
+ * <p>
+ * Particles live in parallel primitive arrays.  The motion and likelihood updates are split
+ * across the fork/join pool it's given, and resampling is low-variance (systematic).  The number of
+ * particles is adjusted so each update stays within {@link #TIME_BUDGET_NANOS}.
+ * <p>
+ * Unlike the Kalman filter there's no history:  data is applied in the order it arrives.
+ */
+public class ParticleFilter implements PoseEstimator, LocationProvider, Telemeter {
+    private static final int MIN_PARTICLES = 256;
+    private static final int MAX_PARTICLES = 8192;
+    private static final int INITIAL_PARTICLES = 1024;
+    // how long a single predict or correct may take, so whoever feeds us keeps up
+    private static final long TIME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    // ranges smaller than this aren't worth forking
+    private static final int FORK_THRESHOLD = 512;
+    // resample once the effective sample size drops below this fraction of the particles
+    private static final double RESAMPLE_THRESHOLD = .5;
+    // keeps zero-variance odometry steps (e.g. standing still) from collapsing every particle
+    private static final double MIN_MOTION_STDDEV = 1e-4;
+
+    private final Object lock = new Object();
+    private final ForkJoinPool pool;
+
+    private double[] x = new double[MAX_PARTICLES], y = new double[MAX_PARTICLES], heading = new double[MAX_PARTICLES];
+    private double[] nextX = new double[MAX_PARTICLES], nextY = new double[MAX_PARTICLES], nextHeading = new double[MAX_PARTICLES];
+    private final double[] weight = new double[MAX_PARTICLES];
+    private final double[] logLikelihood = new double[MAX_PARTICLES];
+    private int count;
+
+    private int targetCount = INITIAL_PARTICLES;
+    private double nanosPerParticle = 0;
+    private double effectiveSampleSize;
+    private long lastUpdateNanos;
+    private long resamples = 0;
+
+    private long lastPredictionTime = Long.MIN_VALUE;
+    private double lastX, lastY, lastHeading;
+    private Pose velocity = Pose.ZERO;
+
+    private volatile PoseSnapshot snapshot;
+    private long version = 0;
+
+    /**
+     * @param pool where updates over many particles are split up;  should be the robot's own (see
+     *             {@link com.kuriosityrobotics.firstforward.robot.RobotExecutors#getSensorComputePool()}),
+     *             so they don't wait behind whatever else is in the common pool
+     */
+    public ParticleFilter(ForkJoinPool pool, double[] initialState, double... initialVariance) {
+        this.pool = pool;
+        reset(initialState, initialVariance);
+    }
+
+    @Override
+    public void reset(double[] initialState, double... initialVariance) {
+        synchronized (lock) {
+            count = INITIAL_PARTICLES;
+            var random = ThreadLocalRandom.current();
+            double sx = Math.sqrt(initialVariance[0]), sy = Math.sqrt(initialVariance[1]), sh = Math.sqrt(initialVariance[2]);
+            for (int i = 0; i < count; i++) {
+                x[i] = initialState[0] + sx * random.nextGaussian();
+                y[i] = initialState[1] + sy * random.nextGaussian();
+                heading[i] = initialState[2] + sh * random.nextGaussian();
+                weight[i] = 1. / count;
+            }
+
+            effectiveSampleSize = count;
+            lastPredictionTime = Long.MIN_VALUE;
+            velocity = Pose.ZERO;
+            publish(Long.MIN_VALUE);
+        }
+    }
+
+    public void reset(double... initialState) {
+        reset(initialState, new double[initialState.length]);
+    }
+
+    /**
+     * Moves every particle by the datum's delta plus noise drawn from its covariance.  Robot
+     * relative deltas (as from {@link com.kuriosityrobotics.firstforward.robot.sensors.Odometry}),
+     * and deltas rotated by a heading, are rotated by each particle's own heading instead.
+     */
+    @Override
+    public void predict(KalmanDatum datum) {
+        synchronized (lock) {
+            long start = System.nanoTime();
+
+            var G = datum.outputToStateData();
+            var u = datum.meanData;
+            var Q = datum.covarianceData;
+            int n = datum.stateDimension, m = datum.outputDimension;
+
+            double su = Math.sqrt(Math.max(Q[0], 0)) + MIN_MOTION_STDDEV;
+            double sv = Math.sqrt(Math.max(Q[m + 1], 0)) + MIN_MOTION_STDDEV;
+            double sw = Math.sqrt(Math.max(Q[2 * m + 2], 0)) + MIN_MOTION_STDDEV;
+
+            // rotate(theta) from MathUtil, in the top left of G
+            boolean rotation = datum.robotRelative || G[0] == G[n + 1] && G[1] == -G[n] && G[2 * n + 2] == 1
+                    && G[2] == 0 && G[n + 2] == 0 && G[2 * n] == 0 && G[2 * n + 1] == 0;
+
+            double[] px = x, py = y, ph = heading;
+            parallelFor(count, (from, to) -> {
+                var random = ThreadLocalRandom.current();
+                for (int i = from; i < to; i++) {
+                    double du = u[0] + su * random.nextGaussian();
+                    double dv = u[1] + sv * random.nextGaussian();
+                    double dw = u[2] + sw * random.nextGaussian();
+
+                    if (rotation) {
+                        double cos = Math.cos(ph[i]), sin = Math.sin(ph[i]);
+                        px[i] += cos * du + sin * dv;
+                        py[i] += -sin * du + cos * dv;
+                        ph[i] += dw;
+                    } else {
+                        px[i] += G[0] * du + G[1] * dv + G[2] * dw;
+                        py[i] += G[n] * du + G[n + 1] * dv + G[n + 2] * dw;
+                        ph[i] += G[2 * n] * du + G[2 * n + 1] * dv + G[2 * n + 2] * dw;
+                    }
+                }
+            });
+
+            finishUpdate(datum.time, true, start);
+        }
+    }
+
+    /**
+     * Reweights the particles by the datum's likelihood, treating its outputs as independent.
+     * Only the pose columns of its H are used.
+     */
+    @Override
+    public void correct(KalmanDatum datum) {
+        synchronized (lock) {
+            long start = System.nanoTime();
+
+            var H = datum.stateToOutputData;
+            var z = datum.meanData;
+            var R = datum.covarianceData;
+            int stride = datum.stateDimension, m = datum.outputDimension;
+
+            double[] px = x, py = y, ph = heading;
+            parallelFor(count, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    double ll = 0;
+                    for (int k = 0; k < m; k++) {
+                        int row = k * stride;
+                        double error = z[k] - (H[row] * px[i] + H[row + 1] * py[i] + H[row + 2] * ph[i]);
+                        ll -= .5 * error * error / R[k * m + k];
+                    }
+                    logLikelihood[i] = ll;
+                }
+            });
+
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++)
+                max = Math.max(max, logLikelihood[i]);
+
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                weight[i] *= Math.exp(logLikelihood[i] - max);
+                sum += weight[i];
+            }
+
+            if (!(sum > 0)) {
+                // nothing is consistent with the measurement;  keep the particles as they were
+                for (int i = 0; i < count; i++)
+                    weight[i] = 1. / count;
+            } else {
+                for (int i = 0; i < count; i++)
+                    weight[i] /= sum;
+            }
+
+            finishUpdate(datum.time, false, start);
+        }
+    }
+
+    private void finishUpdate(long time, boolean prediction, long start) {
+        double squares = 0;
+        for (int i = 0; i < count; i++)
+            squares += weight[i] * weight[i];
+        effectiveSampleSize = 1 / squares;
+
+        if (effectiveSampleSize < RESAMPLE_THRESHOLD * count || count > targetCount * 5 / 4)
+            resample(targetCount);
+
+        publish(prediction ? time : Long.MIN_VALUE);
+
+        lastUpdateNanos = System.nanoTime() - start;
+        double sample = (double) lastUpdateNanos / count;
+        nanosPerParticle = nanosPerParticle == 0 ? sample : .9 * nanosPerParticle + .1 * sample;
+        targetCount = (int) Math.max(MIN_PARTICLES, Math.min(MAX_PARTICLES, TIME_BUDGET_NANOS / nanosPerParticle));
+    }
+
+    /**
+     * Low-variance resampling:  one random offset, then {@code newCount} evenly spaced pointers
+     * into the cumulative weights.  O(n), and keeps more diversity than drawing independently.
+     */
+    private void resample(int newCount) {
+        double step = 1. / newCount;
+        double pointer = ThreadLocalRandom.current().nextDouble() * step;
+        double cumulative = weight[0];
+        int i = 0;
+
+        for (int j = 0; j < newCount; j++, pointer += step) {
+            while (pointer > cumulative && i < count - 1)
+                cumulative += weight[++i];
+
+            nextX[j] = x[i];
+            nextY[j] = y[i];
+            nextHeading[j] = heading[i];
+        }
+
+        var swap = x;
+        x = nextX;
+        nextX = swap;
+        swap = y;
+        y = nextY;
+        nextY = swap;
+        swap = heading;
+        heading = nextHeading;
+        nextHeading = swap;
+
+        count = newCount;
+        for (int j = 0; j < count; j++)
+            weight[j] = step;
+        effectiveSampleSize = count;
+        resamples++;
+    }
+
+    /**
+     * @param predictionTime time of the prediction just applied, used to update the velocity, or
+     *                       {@link Long#MIN_VALUE} after a correction or reset
+     */
+    private void publish(long predictionTime) {
+        // headings are averaged as directions, around the first particle's so that the result stays
+        // on the same (unwrapped) turn as the particles;  a plain average of particles either side
+        // of a wrap would point the opposite way
+        double reference = heading[0];
+        double mx = 0, my = 0, sin = 0, cos = 0;
+        for (int i = 0; i < count; i++) {
+            mx += weight[i] * x[i];
+            my += weight[i] * y[i];
+            sin += weight[i] * Math.sin(heading[i] - reference);
+            cos += weight[i] * Math.cos(heading[i] - reference);
+        }
+        double mh = reference + Math.atan2(sin, cos);
+
+        double vx = 0, vy = 0, vh = 0;
+        for (int i = 0; i < count; i++) {
+            vx += weight[i] * (x[i] - mx) * (x[i] - mx);
+            vy += weight[i] * (y[i] - my) * (y[i] - my);
+            double dh = angleWrap(heading[i] - mh);
+            vh += weight[i] * dh * dh;
+        }
+
+        if (predictionTime != Long.MIN_VALUE) {
+            if (lastPredictionTime != Long.MIN_VALUE && predictionTime > lastPredictionTime) {
+                double dt = (predictionTime - lastPredictionTime) / 1000.;
+                velocity = new Pose((mx - lastX) / dt, (my - lastY) / dt, angleWrap(mh - lastHeading) / dt);
+            }
+            lastPredictionTime = predictionTime;
+        }
+        lastX = mx;
+        lastY = my;
+        lastHeading = mh;
+
+        long time = lastPredictionTime == Long.MIN_VALUE ? 0 : lastPredictionTime;
+        snapshot = new PoseSnapshot(++version, time, new double[]{mx, my, mh}, new double[]{vx, vy, vh}, velocity);
+    }
+
+    @Override
+    public PoseSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public Pose getPose() {
+        return snapshot.getPose();
+    }
+
+    @Override
+    public Pose getVelocity() {
+        return snapshot.getVelocity();
+    }
+
+    private interface RangeAction {
+        void apply(int from, int to);
+    }
+
+    private static final class Chunk extends RecursiveAction {
+        private final RangeAction action;
+        private final int from, to;
+
+        Chunk(RangeAction action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FORK_THRESHOLD) {
+                action.apply(from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new Chunk(action, from, middle), new Chunk(action, middle, to));
+        }
+    }
+
+    private void parallelFor(int count, RangeAction action) {
+        if (count <= FORK_THRESHOLD)
+            action.apply(0, count);
+        else
+            pool.invoke(new Chunk(action, 0, count));
+    }
+
+    @Override
+    public List<String> getTelemetryData() {
+        synchronized (lock) {
+            return new ArrayList<>() {{
+                add(snapshot.toString());
+                add("Particles:  " + count + " (target " + targetCount + ", effective " + (int) effectiveSampleSize + ")");
+                add("Last update:  " + lastUpdateNanos / 1000 + " us, " + resamples + " resamples");
+            }};
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "ParticleFilter";
+    }
+
+    @Override
+    public boolean isOn() {
+        return true;
+    }
+}
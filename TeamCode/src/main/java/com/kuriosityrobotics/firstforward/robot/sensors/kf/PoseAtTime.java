@@ -0,0 +1,83 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import androidx.annotation.NonNull;
+
+import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
+
+/**
+ * The estimated pose and velocity at some past time, looked up from the filter's history.
+ * <p>
+ * There is always a best-effort pose, but callers that care about latency (e.g. projecting a
+ * vision detection) should check {@link #getStatus()} or {@link #isInWindow()} first.
+ */
+public final class PoseAtTime {
+    public enum Status {
+        /**
+         * The time falls inside the retained history, and the pose was interpolated between the
+         * entries either side of it.
+         */
+        IN_WINDOW,
+        /**
+         * The time is older than the retained history;  the pose is the oldest one kept.
+         */
+        BEFORE_WINDOW,
+        /**
+         * The time is newer than the latest datum;  the pose is the latest estimate.
+         */
+        AFTER_WINDOW,
+        /**
+         * There's no history to look in (e.g. the location provider doesn't keep any);  the pose is
+         * the current one.
+         */
+        NO_HISTORY
+    }
+
+    private final long time;
+    private final Status status;
+    private final Pose pose;
+    private final Pose velocity;
+
+    public PoseAtTime(long time, Status status, Pose pose, Pose velocity) {
+        this.time = time;
+        this.status = status;
+        this.pose = pose;
+        this.velocity = velocity;
+    }
+
+    /**
+     * @return the time that was asked for
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isInWindow() {
+        return status == Status.IN_WINDOW;
+    }
+
+    public Pose getPose() {
+        return pose;
+    }
+
+    /**
+     * @return velocity at {@link #getTime()}, per second
+     */
+    public Pose getVelocity() {
+        return velocity;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "PoseAtTime{" +
+                "time=" + time +
+                ", status=" + status +
+                ", pose=" + pose +
+                ", velocity=" + velocity +
+                '}';
+    }
+}
@@ -0,0 +1,21 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+/**
+ * Turns odometry predictions and sensor corrections into a pose estimate.
+ * <p>
+ * Data is given in the {@link ExtendedKalmanFilter}'s layout:  predictions are full-state deltas
+ * rotated into the field frame by their output-to-state matrix, and corrections observe the
+ * state through their state-to-output matrix.
+ */
+public interface PoseEstimator {
+    void predict(KalmanDatum datum);
+
+    void correct(KalmanDatum datum);
+
+    void reset(double[] initialState, double... initialVariance);
+
+    /**
+     * @return the latest published estimate.  Never blocks.
+     */
+    PoseSnapshot getSnapshot();
+}
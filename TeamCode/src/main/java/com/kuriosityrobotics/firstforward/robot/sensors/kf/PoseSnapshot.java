@@ -0,0 +1,85 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import androidx.annotation.NonNull;
+
+import com.kuriosityrobotics.firstforward.robot.util.math.Pose;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the filter's output, published after every update so readers never have to
+ * take the filter's lock.
+ * <p>
+ * The version increases by one for every publication, so a caller that remembers the version of
+ * the last snapshot it used can cheaply tell whether anything changed.
+ */
+public final class PoseSnapshot {
+    private final long version;
+    private final long time;
+    private final double[] state;
+    private final double[] covarianceDiagonal;
+    private final Pose pose;
+    private final Pose velocity;
+
+    PoseSnapshot(long version, long time, double[] state, double[] covarianceDiagonal, Pose velocity) {
+        this.version = version;
+        this.time = time;
+        this.state = state;
+        this.covarianceDiagonal = covarianceDiagonal;
+        this.pose = Pose.of(state);
+        this.velocity = velocity;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return timestamp of the newest datum reflected in this snapshot
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public Pose getPose() {
+        return pose;
+    }
+
+    public Pose getVelocity() {
+        return velocity;
+    }
+
+    public double getState(int i) {
+        return state[i];
+    }
+
+    public double getVariance(int i) {
+        return covarianceDiagonal[i];
+    }
+
+    public int getDimension() {
+        return state.length;
+    }
+
+    public double[] toArray() {
+        return state.clone();
+    }
+
+    /**
+     * @return whether this snapshot is newer than the one with version {@code version}
+     */
+    public boolean isNewerThan(long version) {
+        return this.version > version;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "PoseSnapshot{" +
+                "version=" + version +
+                ", time=" + time +
+                ", state=" + Arrays.toString(state) +
+                ", variance=" + Arrays.toString(covarianceDiagonal) +
+                '}';
+    }
+}
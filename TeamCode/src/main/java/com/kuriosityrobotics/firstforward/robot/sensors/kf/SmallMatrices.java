@@ -0,0 +1,104 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+/**
+ * Allocation-free operations on small, row-major matrices stored in {@code double[]}s.
+ * <p>
+ * The 3x3 versions are unrolled by hand since that's the size of the pose filter and they run
+ * several times for every datum on every replay.  Output arrays must not alias inputs.
+ */
+final class SmallMatrices {
+    private SmallMatrices() {
+    }
+
+    /**
+     * out = a * b
+     */
+    static void multiply3(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[3] + a[2] * b[6];
+        out[1] = a[0] * b[1] + a[1] * b[4] + a[2] * b[7];
+        out[2] = a[0] * b[2] + a[1] * b[5] + a[2] * b[8];
+        out[3] = a[3] * b[0] + a[4] * b[3] + a[5] * b[6];
+        out[4] = a[3] * b[1] + a[4] * b[4] + a[5] * b[7];
+        out[5] = a[3] * b[2] + a[4] * b[5] + a[5] * b[8];
+        out[6] = a[6] * b[0] + a[7] * b[3] + a[8] * b[6];
+        out[7] = a[6] * b[1] + a[7] * b[4] + a[8] * b[7];
+        out[8] = a[6] * b[2] + a[7] * b[5] + a[8] * b[8];
+    }
+
+    /**
+     * out = a * b^T
+     */
+    static void multiplyTransposed3(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+        out[1] = a[0] * b[3] + a[1] * b[4] + a[2] * b[5];
+        out[2] = a[0] * b[6] + a[1] * b[7] + a[2] * b[8];
+        out[3] = a[3] * b[0] + a[4] * b[1] + a[5] * b[2];
+        out[4] = a[3] * b[3] + a[4] * b[4] + a[5] * b[5];
+        out[5] = a[3] * b[6] + a[4] * b[7] + a[5] * b[8];
+        out[6] = a[6] * b[0] + a[7] * b[1] + a[8] * b[2];
+        out[7] = a[6] * b[3] + a[7] * b[4] + a[8] * b[5];
+        out[8] = a[6] * b[6] + a[7] * b[7] + a[8] * b[8];
+    }
+
+    /**
+     * out = a * v
+     */
+    static void multiplyVector3(double[] a, double[] v, double[] out) {
+        out[0] = a[0] * v[0] + a[1] * v[1] + a[2] * v[2];
+        out[1] = a[3] * v[0] + a[4] * v[1] + a[5] * v[2];
+        out[2] = a[6] * v[0] + a[7] * v[1] + a[8] * v[2];
+    }
+
+    /**
+     * Inverts a 3x3 matrix by cofactor expansion.
+     *
+     * @return the determinant of {@code a}.  If it is zero, {@code out} is left untouched.
+     */
+    static double invert3(double[] a, double[] out) {
+        double c00 = a[4] * a[8] - a[5] * a[7];
+        double c01 = a[5] * a[6] - a[3] * a[8];
+        double c02 = a[3] * a[7] - a[4] * a[6];
+
+        double det = a[0] * c00 + a[1] * c01 + a[2] * c02;
+        if (det == 0)
+            return 0;
+
+        double invDet = 1 / det;
+        out[0] = c00 * invDet;
+        out[1] = (a[2] * a[7] - a[1] * a[8]) * invDet;
+        out[2] = (a[1] * a[5] - a[2] * a[4]) * invDet;
+        out[3] = c01 * invDet;
+        out[4] = (a[0] * a[8] - a[2] * a[6]) * invDet;
+        out[5] = (a[2] * a[3] - a[0] * a[5]) * invDet;
+        out[6] = c02 * invDet;
+        out[7] = (a[1] * a[6] - a[0] * a[7]) * invDet;
+        out[8] = (a[0] * a[4] - a[1] * a[3]) * invDet;
+        return det;
+    }
+
+    /**
+     * out = a * b, where a is rows x inner and b is inner x cols
+     */
+    static void multiply(double[] a, double[] b, double[] out, int rows, int inner, int cols) {
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++) {
+                double sum = 0;
+                for (int k = 0; k < inner; k++)
+                    sum += a[i * inner + k] * b[k * cols + j];
+                out[i * cols + j] = sum;
+            }
+    }
+
+    /**
+     * out = a * b^T, where a is rows x inner and b is cols x inner
+     */
+    static void multiplyTransposed(double[] a, double[] b, double[] out, int rows, int inner, int cols) {
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++) {
+                double sum = 0;
+                for (int k = 0; k < inner; k++)
+                    sum += a[i * inner + k] * b[j * inner + k];
+                out[i * cols + j] = sum;
+            }
+    }
+}
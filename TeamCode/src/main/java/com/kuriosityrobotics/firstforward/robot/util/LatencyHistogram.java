@@ -0,0 +1,68 @@
+package com.kuriosityrobotics.firstforward.robot.util;
+
+import java.util.Locale;
+
+/**
+ * Counts latencies into 1 ms buckets, so percentiles can be read off without keeping every
+ * sample.  Anything over {@link #MAX_MILLIS} goes in one overflow bucket.
+ */
+public class LatencyHistogram {
+    private static final int MAX_MILLIS = 100;
+
+    // bucket i holds latencies in [i, i + 1) ms;  the last one everything past MAX_MILLIS
+    private final long[] buckets = new long[MAX_MILLIS + 1];
+    private long count = 0;
+    private long maxNanos = 0;
+    private long totalNanos = 0;
+
+    public synchronized void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        int bucket = (int) Math.min(nanos / 1_000_000, MAX_MILLIS);
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. .99 for the 99th percentile
+     * @return the upper edge of the bucket the percentile falls in, in ms;  0 if nothing has been
+     * recorded
+     */
+    public synchronized long percentileMillis(double fraction) {
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < MAX_MILLIS; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return i + 1;
+        }
+        return maxNanos / 1_000_000;
+    }
+
+    public synchronized double getAverageMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * @return one line of telemetry:  average, p50, p90, p99 and max
+     */
+    public synchronized String summary() {
+        return String.format(Locale.US, "avg %.1f, p50 %d, p90 %d, p99 %d, max %.1f ms (%d samples)",
+                getAverageMillis(), percentileMillis(.5), percentileMillis(.9), percentileMillis(.99), getMaxMillis(), count);
+    }
+}
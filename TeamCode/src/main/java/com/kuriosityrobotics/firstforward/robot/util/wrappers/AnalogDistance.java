@@ -1,23 +1,37 @@
 package com.kuriosityrobotics.firstforward.robot.util.wrappers;
 
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubDataSnapshot;
 import com.qualcomm.robotcore.hardware.AnalogInput;
 
 public class AnalogDistance {
     final AnalogInput analogInput;
+    private final HubData hubData;
+    private final HubData.Hub hub;
+    private final int port;
+
+    /**
+     * Reads the sensor from the bulk data snapshot of the hub it's plugged into.
+     */
+    public AnalogDistance(AnalogInput analogInput, HubData hubData, HubData.Hub hub) {
+        this.analogInput = analogInput;
+        this.hubData = hubData;
+        this.hub = hub;
+        this.port = HubDataSnapshot.portOf(analogInput);
+    }
 
     public AnalogDistance(AnalogInput analogInput) {
         this.analogInput = analogInput;
+        this.hubData = null;
+        this.hub = null;
+        this.port = -1;
     }
 
     public double getSensorReading() {
-        double voltage_temp_average = 0;
-
-        for (int i = 0; i < 2; i++) {
-            voltage_temp_average += analogInput.getVoltage();
-        }
-        voltage_temp_average /= 2;
+        // one bulk read only has one voltage in it, so there's nothing to average
+        double voltage = hubData == null ? analogInput.getVoltage() : hubData.getAnalogInputVoltage(hub, analogInput, port);
 
         // polynomial moment: 33.9 + -69.5x + 62.3x^2 + -25.4x^3 + 3.83x^4. Used for calculations.
-        return (33.9 + -69.5 * (voltage_temp_average) + 62.3 * Math.pow(voltage_temp_average, 2) + -25.4 * Math.pow(voltage_temp_average, 3) + 3.83 * Math.pow(voltage_temp_average, 4)) * 10;
+        return (33.9 + -69.5 * (voltage) + 62.3 * Math.pow(voltage, 2) + -25.4 * Math.pow(voltage, 3) + 3.83 * Math.pow(voltage, 4)) * 10;
     }
 }
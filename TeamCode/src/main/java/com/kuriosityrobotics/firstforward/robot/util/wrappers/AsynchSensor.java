@@ -1,53 +1,127 @@
 package com.kuriosityrobotics.firstforward.robot.util.wrappers;
 
-import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.mean;
-import static java.util.concurrent.CompletableFuture.runAsync;
+import java.util.concurrent.TimeUnit;
 
-import android.os.SystemClock;
+/**
+ * A periodic sensor read:  what to run, how often, and at what offset into the period.  Run by
+ * {@link com.kuriosityrobotics.firstforward.robot.sensors.SensorScheduler}, which also keeps the
+ * timing statistics here up to date.  The frequency may be changed while it runs.
+ */
+public class AsynchSensor {
+    private static final long STATISTICS_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_STARTS = 256;
 
-import com.kuriosityrobotics.firstforward.robot.util.Timer;
+    private volatile long periodNanos; // 1 / hz; 0 runs back to back
+    private final long phaseNanos;
+    private final Runnable sensorProcess;
 
-import org.apache.commons.collections4.queue.CircularFifoQueue;
+    // start times over roughly the last second, for the average update time
+    private final long[] starts = new long[MAX_STARTS];
+    private int newestStart = -1, startCount = 0;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
+    private long runs = 0;
+    // runs that finished after the next one was due, and the releases dropped because of them
+    private long overruns = 0, skips = 0;
+    private long maxLatenessNanos = 0;
 
-public class AsynchSensor {
-    private final long minimumMillisPerCycle; // 1 / hz
-    private final Runnable sensorProcess;
-    private final HashMap<Long, Double> updateTimes = new HashMap<>();
-
-    private Timer timer;
-    private CompletableFuture<Void> future;
+    public AsynchSensor(int maxFrequency, long phaseMillis, Runnable sensorProcess) {
+        setMaxFrequency(maxFrequency);
+        this.phaseNanos = TimeUnit.MILLISECONDS.toNanos(phaseMillis);
+        this.sensorProcess = sensorProcess;
+    }
 
     public AsynchSensor(int maxFrequency, Runnable sensorProcess) {
-        this.minimumMillisPerCycle = (long) (1000. / maxFrequency);
-        this.sensorProcess = sensorProcess;
+        this(maxFrequency, 0, sensorProcess);
     }
 
     public AsynchSensor(Runnable sensorProcess) {
-        this.minimumMillisPerCycle = 0;
+        this.periodNanos = 0;
+        this.phaseNanos = 0;
         this.sensorProcess = sensorProcess;
     }
 
-    private void pushUpdateTime(double updateTime) {
-        var now = SystemClock.elapsedRealtime();
-        updateTimes.put(now, updateTime);
-        updateTimes.entrySet().removeIf(entry -> entry.getKey() < now - 1000);
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @param maxFrequency hz, or {@link Double#POSITIVE_INFINITY} to run back to back
+     */
+    public void setMaxFrequency(double maxFrequency) {
+        this.periodNanos = (long) (1e9 / maxFrequency);
     }
 
-    public final synchronized void update() {
-        if (future == null || (timer.tick() && future.isDone())) {
-            if (timer != null)
-                pushUpdateTime(timer.millisElapsedSinceStart());
+    /**
+     * @return the configured frequency in hz, infinite if running back to back
+     */
+    public double getMaxFrequency() {
+        long period = periodNanos;
+        return period == 0 ? Double.POSITIVE_INFINITY : 1e9 / period;
+    }
 
-            timer = Timer.alarmIn(minimumMillisPerCycle);
-            future = runAsync(sensorProcess);
+    public long getPhaseNanos() {
+        return phaseNanos;
+    }
+
+    /**
+     * Runs the sensor once.
+     *
+     * @param start    {@link System#nanoTime()} the run started at
+     * @param lateness how long after its release time the run started
+     */
+    public final void run(long start, long lateness) {
+        synchronized (this) {
+            newestStart = (newestStart + 1) % MAX_STARTS;
+            starts[newestStart] = start;
+            startCount = Math.min(startCount + 1, MAX_STARTS);
+            runs++;
+            maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
         }
+
+        sensorProcess.run();
     }
 
+    public final synchronized void recordOverrun(long skippedReleases) {
+        overruns++;
+        skips += skippedReleases;
+    }
+
+    /**
+     * @return the average time between runs starting, over the last second, in milliseconds
+     */
     public final synchronized double rollingAverageUpdateTime() {
-        return mean(updateTimes.values());
+        if (startCount < 2)
+            return Double.NaN;
+
+        long newest = starts[newestStart];
+        int count = 1;
+        long oldest = newest;
+        for (int i = 1; i < startCount; i++) {
+            long start = starts[(newestStart - i + MAX_STARTS) % MAX_STARTS];
+            if (newest - start > STATISTICS_WINDOW_NANOS)
+                break;
+            oldest = start;
+            count++;
+        }
+
+        if (count < 2)
+            return Double.NaN;
+        return (newest - oldest) / 1e6 / (count - 1);
+    }
+
+    public final synchronized long getRuns() {
+        return runs;
+    }
+
+    public final synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public final synchronized long getSkips() {
+        return skips;
+    }
+
+    public final synchronized long getMaxLatenessNanos() {
+        return maxLatenessNanos;
     }
 }
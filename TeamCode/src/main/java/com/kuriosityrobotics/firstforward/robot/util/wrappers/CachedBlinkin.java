@@ -0,0 +1,29 @@
+package com.kuriosityrobotics.firstforward.robot.util.wrappers;
+
+import com.qualcomm.hardware.rev.RevBlinkinLedDriver;
+import com.qualcomm.hardware.rev.RevBlinkinLedDriver.BlinkinPattern;
+
+/**
+ * A {@link RevBlinkinLedDriver} whose pattern is only sent when it changes.
+ */
+public class CachedBlinkin extends CachedOutput {
+    private final RevBlinkinLedDriver driver;
+
+    private BlinkinPattern pattern;
+
+    public CachedBlinkin(RevBlinkinLedDriver driver) {
+        this.driver = driver;
+    }
+
+    public void setPattern(BlinkinPattern pattern) {
+        if (!shouldWrite(pattern == this.pattern))
+            return;
+
+        driver.setPattern(pattern);
+        this.pattern = pattern;
+    }
+
+    public BlinkinPattern getPattern() {
+        return pattern;
+    }
+}
@@ -0,0 +1,115 @@
+package com.kuriosityrobotics.firstforward.robot.util.wrappers;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorEx;
+
+import org.firstinspires.ftc.robotcore.external.navigation.AngleUnit;
+
+/**
+ * A {@link DcMotorEx} whose mode, target position, power and velocity are only sent when they
+ * change.  Anything else (direction, PIDF, reads) goes through {@link #getMotor()}, and should be
+ * done before the motor is first written through here.
+ */
+public class CachedMotor extends CachedOutput {
+    // about 33 of the hub's 32767 power steps;  far less than the motor can feel
+    public static final double DEFAULT_POWER_TOLERANCE = .001;
+    // the hub runs velocity in whole ticks per second
+    public static final double DEFAULT_VELOCITY_TOLERANCE = 1; // ticks/s
+    // under a tick per second on any of our motors (537.7 to 1120 ticks per revolution)
+    public static final double DEFAULT_ANGULAR_VELOCITY_TOLERANCE = .005; // rad/s
+
+    // properties, as timed by CachedOutput;  power and velocity are the same output
+    private static final int MODE = 0, TARGET_POSITION = 1, OUTPUT = 2;
+
+    private final DcMotorEx motor;
+    private final double powerTolerance;
+    private final double velocityTolerance;
+    private final double angularVelocityTolerance;
+
+    private DcMotor.RunMode mode;
+    private int targetPosition;
+    private boolean targetPositionSent = false;
+    // NaN when the last command wasn't of that kind
+    private double power = Double.NaN;
+    private double velocity = Double.NaN;
+    private AngleUnit velocityUnit;
+
+    /**
+     * @param velocityTolerance        for velocities in ticks per second
+     * @param angularVelocityTolerance for velocities given with an {@link AngleUnit}, in radians
+     *                                 per second whatever the unit
+     */
+    public CachedMotor(DcMotorEx motor, double powerTolerance, double velocityTolerance, double angularVelocityTolerance) {
+        super(3);
+        this.motor = motor;
+        this.powerTolerance = powerTolerance;
+        this.velocityTolerance = velocityTolerance;
+        this.angularVelocityTolerance = angularVelocityTolerance;
+    }
+
+    public CachedMotor(DcMotorEx motor) {
+        this(motor, DEFAULT_POWER_TOLERANCE, DEFAULT_VELOCITY_TOLERANCE, DEFAULT_ANGULAR_VELOCITY_TOLERANCE);
+    }
+
+    public DcMotorEx getMotor() {
+        return motor;
+    }
+
+    public void setMode(DcMotor.RunMode mode) {
+        // resetting the encoder is an action, not a state
+        if (!shouldWrite(MODE, mode == this.mode && mode != DcMotor.RunMode.STOP_AND_RESET_ENCODER))
+            return;
+
+        motor.setMode(mode);
+        this.mode = mode;
+        // the controller may drop the motor's power when the mode changes
+        power = Double.NaN;
+        velocity = Double.NaN;
+    }
+
+    public void setTargetPosition(int position) {
+        if (!shouldWrite(TARGET_POSITION, targetPositionSent && position == targetPosition))
+            return;
+
+        motor.setTargetPosition(position);
+        targetPosition = position;
+        targetPositionSent = true;
+    }
+
+    /**
+     * @return the last target position sent, without asking the hub
+     */
+    public int getTargetPosition() {
+        return targetPosition;
+    }
+
+    public void setPower(double power) {
+        if (!shouldWrite(OUTPUT, Math.abs(power - this.power) < powerTolerance))
+            return;
+
+        motor.setPower(power);
+        this.power = power;
+        velocity = Double.NaN;
+    }
+
+    public void setVelocity(double velocity) {
+        setVelocity(velocity, null);
+    }
+
+    /**
+     * @param unit null for ticks per second
+     */
+    public void setVelocity(double velocity, AngleUnit unit) {
+        double tolerance = unit == null ? velocityTolerance : unit.fromRadians(angularVelocityTolerance);
+        if (!shouldWrite(OUTPUT, unit == velocityUnit && Math.abs(velocity - this.velocity) < tolerance))
+            return;
+
+        if (unit == null)
+            motor.setVelocity(velocity);
+        else
+            motor.setVelocity(velocity, unit);
+        this.velocity = velocity;
+        this.velocityUnit = unit;
+        power = Double.NaN;
+    }
+}
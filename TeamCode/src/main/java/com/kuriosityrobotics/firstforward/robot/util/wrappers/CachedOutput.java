@@ -0,0 +1,81 @@
+package com.kuriosityrobotics.firstforward.robot.util.wrappers;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the output wrappers that don't send a hub a command it has already been given.  Every
+ * write is a blocking Lynx transaction, and most modules command the same thing every loop.
+ * <p>
+ * A repeated value still goes out once {@link #REFRESH_MILLIS} has passed since that property was
+ * last sent, so a hub that lost its state (a brownout, an ESD reset) is set right again.  Each
+ * property a wrapper writes is timed separately, so one that changes every loop (a motor's power)
+ * doesn't keep the others (its mode) from being refreshed.
+ * <p>
+ * The wrappers aren't thread safe;  each one should only be written from one thread.
+ */
+public abstract class CachedOutput {
+    public static final long REFRESH_MILLIS = 1000;
+
+    private static final AtomicLong issuedWrites = new AtomicLong();
+    private static final AtomicLong suppressedWrites = new AtomicLong();
+
+    // when each property was last sent
+    private final long[] lastWriteTimes;
+
+    /**
+     * @param properties how many separately written properties the wrapper has
+     */
+    protected CachedOutput(int properties) {
+        lastWriteTimes = new long[properties];
+        Arrays.fill(lastWriteTimes, Long.MIN_VALUE / 2);
+    }
+
+    protected CachedOutput() {
+        this(1);
+    }
+
+    /**
+     * @param property  which of the wrapper's properties is being written, from 0
+     * @param unchanged whether the write is the same as the last one of that property that was sent
+     * @return whether to send the write;  counts it either way
+     */
+    protected final boolean shouldWrite(int property, boolean unchanged) {
+        long now = now();
+        if (unchanged && now - lastWriteTimes[property] < REFRESH_MILLIS) {
+            suppressedWrites.incrementAndGet();
+            return false;
+        }
+
+        issuedWrites.incrementAndGet();
+        lastWriteTimes[property] = now;
+        return true;
+    }
+
+    /**
+     * {@link #shouldWrite(int, boolean)} for wrappers with a single property.
+     */
+    protected final boolean shouldWrite(boolean unchanged) {
+        return shouldWrite(0, unchanged);
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return writes sent to any hub through a cached output, ever
+     */
+    public static long getIssuedWrites() {
+        return issuedWrites.get();
+    }
+
+    /**
+     * @return writes dropped by any cached output because they repeated the last one, ever
+     */
+    public static long getSuppressedWrites() {
+        return suppressedWrites.get();
+    }
+}
@@ -0,0 +1,44 @@
+package com.kuriosityrobotics.firstforward.robot.util.wrappers;
+
+import com.qualcomm.robotcore.hardware.Servo;
+
+/**
+ * A {@link Servo} whose position is only sent when it changes.
+ */
+public class CachedServo extends CachedOutput {
+    // one microsecond of the 500-2500us pulse range
+    public static final double DEFAULT_TOLERANCE = .0005;
+
+    private final Servo servo;
+    private final double tolerance;
+
+    private double position = Double.NaN;
+
+    public CachedServo(Servo servo, double tolerance) {
+        this.servo = servo;
+        this.tolerance = tolerance;
+    }
+
+    public CachedServo(Servo servo) {
+        this(servo, DEFAULT_TOLERANCE);
+    }
+
+    public Servo getServo() {
+        return servo;
+    }
+
+    public void setPosition(double position) {
+        if (!shouldWrite(Math.abs(position - this.position) < tolerance))
+            return;
+
+        servo.setPosition(position);
+        this.position = position;
+    }
+
+    /**
+     * @return the last position sent, without asking the hub
+     */
+    public double getPosition() {
+        return position;
+    }
+}
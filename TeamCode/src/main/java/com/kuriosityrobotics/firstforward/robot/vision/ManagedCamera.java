@@ -2,12 +2,11 @@ package com.kuriosityrobotics.firstforward.robot.vision;
 
 import static com.kuriosityrobotics.firstforward.robot.util.Constants.Webcam.VUFORIA_LICENCE_KEY;
 import static com.kuriosityrobotics.firstforward.robot.util.math.MathUtil.angleWrap;
-import static de.esoco.coroutine.Coroutine.first;
-import static de.esoco.coroutine.step.CodeExecution.consume;
 
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorClock;
 import com.kuriosityrobotics.firstforward.robot.vision.opencv.OpenCvConsumer;
 import com.kuriosityrobotics.firstforward.robot.vision.vuforia.VuforiaLocalizationConsumer;
 
@@ -22,9 +21,7 @@ import org.openftc.easyopencv.OpenCvPipeline;
 
 import java.util.Arrays;
 import java.util.List;
-
-import de.esoco.coroutine.Coroutine;
-import de.esoco.coroutine.CoroutineScope;
+import java.util.concurrent.Executor;
 
 public final class ManagedCamera {
     private final VuforiaLocalizationConsumer vuforiaConsumer;
@@ -34,10 +31,15 @@ public final class ManagedCamera {
     private final WebcamName cameraName;
     private VuforiaLocalizer vuforia;
     private final LocationProvider locationProvider;
+    private final Executor frameExecutor;
 
-    public ManagedCamera(WebcamName cameraName, VuforiaLocalizationConsumer vuforiaConsumer, LocationProvider locationProvider, OpenCvConsumer... openCvConsumers) {
+    /**
+     * @param frameExecutor runs the consumers on each frame, off the camera's thread
+     */
+    public ManagedCamera(WebcamName cameraName, VuforiaLocalizationConsumer vuforiaConsumer, LocationProvider locationProvider, Executor frameExecutor, OpenCvConsumer... openCvConsumers) {
         this.vuforiaConsumer = vuforiaConsumer;
         this.locationProvider = locationProvider;
+        this.frameExecutor = frameExecutor;
         this.openCvConsumers = Arrays.asList(openCvConsumers);
 
         this.cameraName = cameraName;
@@ -98,6 +100,11 @@ public final class ManagedCamera {
         });
     }
 
+    public ManagedCamera(WebcamName cameraName, VuforiaLocalizationConsumer vuforiaConsumer, LocationProvider locationProvider, OpenCvConsumer... openCvConsumers) {
+        // without an executor, consumers run on the camera's thread
+        this(cameraName, vuforiaConsumer, locationProvider, (Executor) Runnable::run, openCvConsumers);
+    }
+
     public ManagedCamera(WebcamName webcamName, LocationProvider locationProvider, OpenCvConsumer... openCvConsumers) {
         this(webcamName, null, locationProvider, openCvConsumers);
     }
@@ -113,24 +120,22 @@ public final class ManagedCamera {
             if (input.empty())
                 return input;
 
-            if (vuforiaActive) {
-                Coroutine<VuforiaLocalizationConsumer, Void> vuforiaCoro = first(consume((VuforiaLocalizationConsumer::update)));
-                // !!
-                Coroutine<OpenCvConsumer, Void> openCvCoro = first(consume((OpenCvConsumer consumer) -> { //!!
-                    Mat matCopy = input.clone();
-                    consumer.processFrame(angleWrap(vuforiaConsumer.getTargetCameraAngle()), matCopy);
-                    matCopy.release();
-                }));
+            // consumers run asynchronously, so pin down when the frame actually came in (the
+            // webcam doesn't tell us when it was exposed)
+            long captureTime = SensorClock.toMillis(SensorClock.nanos());
 
+            if (vuforiaActive) {
                 // distribute the data
-                CoroutineScope.launch(scope ->
-                {
-                    if (vuforiaConsumer != null) {
-
-                        vuforiaCoro.runAsync(scope, vuforiaConsumer);
-                    }
-                    openCvConsumers.forEach(consumer -> openCvCoro.runAsync(scope, consumer));
-                });
+                if (vuforiaConsumer != null) {
+                    frameExecutor.execute(vuforiaConsumer::update);
+                }
+                for (OpenCvConsumer consumer : openCvConsumers) {
+                    frameExecutor.execute(() -> { //!!
+                        Mat matCopy = input.clone();
+                        consumer.processFrame(angleWrap(vuforiaConsumer.getTargetCameraAngle()), captureTime, matCopy);
+                        matCopy.release();
+                    });
+                }
             }
 
             return input;
@@ -4,6 +4,7 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.RobotExecutors;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
 import com.kuriosityrobotics.firstforward.robot.vision.minerals.CargoDetectorConsumer;
 import com.kuriosityrobotics.firstforward.robot.vision.opencv.OpenCVDumper;
@@ -13,8 +14,12 @@ import com.kuriosityrobotics.firstforward.robot.vision.vuforia.VuforiaLocalizati
 import org.firstinspires.ftc.robotcore.external.hardware.camera.WebcamName;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class VisionThread implements Runnable, Telemeter {
+    private static final long LOOP_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
     private final TeamMarkerDetector teamMarkerDetector;
 
     private final CargoDetectorConsumer cargoDetectorConsumer;
@@ -71,7 +76,8 @@ public class VisionThread implements Runnable, Telemeter {
                     ManagedCamera(
                     robot.isUseCamera(),
                     getVuforiaLocalizationConsumer(),
-                    robot, openCVDumper,
+                    robot, robot.getExecutors().get(RobotExecutors.Workload.VISION),
+                    openCVDumper,
                     getTeamMarkerDetector()
 //                    cargoDetectorConsumer
             );
@@ -94,6 +100,9 @@ public class VisionThread implements Runnable, Telemeter {
                 long currentTime = SystemClock.elapsedRealtime();
                 updateTime = currentTime - lastLoopTime;
                 lastLoopTime = currentTime;
+
+                // frames are handled on the vision pool;  this only has to notice changes
+                LockSupport.parkNanos(LOOP_PERIOD_NANOS);
             }
 
             this.getVuforiaLocalizationConsumer().deactivate();
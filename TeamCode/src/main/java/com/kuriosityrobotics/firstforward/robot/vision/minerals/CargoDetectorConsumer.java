@@ -73,12 +73,12 @@ public class CargoDetectorConsumer implements Runnable, OpenCvConsumer, Telemete
     private volatile double cameraAngle = 0;
 
     @Override
-    public void processFrame(double cameraAngle, Mat frame) {
+    public void processFrame(double cameraAngle, long captureTime, Mat frame) {
         //1920x1080
 
         var oldFrame = latestFrame.getAndSet(Pair.create(
                 frame.clone(),
-                locationProvider.getPose()));
+                locationProvider.getPoseAt(captureTime).getPose()));
 
         if (oldFrame != null)
             oldFrame.first.release();
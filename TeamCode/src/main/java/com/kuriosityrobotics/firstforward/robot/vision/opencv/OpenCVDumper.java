@@ -19,7 +19,7 @@ public class OpenCVDumper implements OpenCvConsumer {
     private long lastCaptureTime;
 
     @Override
-    public void processFrame(double _cameraAngle, Mat frame) {
+    public void processFrame(double _cameraAngle, long _captureTime, Mat frame) {
         if (true || !Robot.DEBUG) { // die
             return;
         }
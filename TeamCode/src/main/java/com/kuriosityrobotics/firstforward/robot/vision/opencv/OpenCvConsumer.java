@@ -3,5 +3,9 @@ package com.kuriosityrobotics.firstforward.robot.vision.opencv;
 import org.opencv.core.Mat;
 
 public interface OpenCvConsumer {
-    void processFrame(double cameraAngle, Mat frame);
+    /**
+     * @param captureTime {@link android.os.SystemClock#elapsedRealtime()} when the frame reached
+     *                    the pipeline;  use it to look up the robot's pose for this frame
+     */
+    void processFrame(double cameraAngle, long captureTime, Mat frame);
 }
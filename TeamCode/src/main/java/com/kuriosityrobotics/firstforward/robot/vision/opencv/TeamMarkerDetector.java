@@ -97,8 +97,9 @@ public class TeamMarkerDetector implements OpenCvConsumer {
      *
      * @param _img input frame
      */
-    public void processFrame(double cameraAngle, Mat _img) {
-        var cam = pinholeCamera.bindToPose(Vector3D.of(locationProvider.getPose().x, 0, locationProvider.getPose().y), cameraAngle, locationProvider.getPose().heading);
+    public void processFrame(double cameraAngle, long captureTime, Mat _img) {
+        var robotPose = locationProvider.getPoseAt(captureTime).getPose();
+        var cam = pinholeCamera.bindToPose(Vector3D.of(robotPose.x, 0, robotPose.y), cameraAngle, robotPose.heading);
 
         var bottomLeft = Vector3D.of(FULL_FIELD, 1.75, FULL_FIELD - 76.5);
         var pnt = cam.getLocationOnFrame(bottomLeft);
@@ -117,7 +118,7 @@ public class TeamMarkerDetector implements OpenCvConsumer {
         Core.bitwise_not(img, img);
         Imgproc.cvtColor(img, img, Imgproc.COLOR_RGB2HSV);
 
-        var frameCamera = pinholeCamera.bindToPose(Vector3D.of(locationProvider.getPose().x, 0, locationProvider.getPose().y), cameraAngle, locationProvider.getPose().heading);
+        var frameCamera = pinholeCamera.bindToPose(Vector3D.of(robotPose.x, 0, robotPose.y), cameraAngle, robotPose.heading);
 
         var pts1 = Arrays.stream(levelOne(angleWrap(cameraAngle /*- locationProvider.getPose().heading*/))).map(frameCamera::getLocationOnFrame)
                 .map(n -> new Point(n.getX(), n.getY())).collect(Collectors.toList());
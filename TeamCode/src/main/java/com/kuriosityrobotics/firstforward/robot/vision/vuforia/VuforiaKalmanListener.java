@@ -7,10 +7,12 @@ import static java.lang.Math.toDegrees;
 import static java.lang.Math.toRadians;
 import static java.text.MessageFormat.format;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
 import com.kuriosityrobotics.firstforward.robot.debug.telemetry.Telemeter;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorClock;
 import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
 import com.vuforia.TrackableResult;
 
@@ -25,10 +27,18 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class VuforiaKalmanListener extends VuforiaTrackableDefaultListener implements Telemeter {
+    // frames older than this (or from the future) mean the timestamp isn't in the clock we think
+    private static final long MAX_FRAME_AGE_MILLIS = 1000;
+    // the filter rejects fixes that are statistically inconsistent with it, at this confidence
+    private static final double GATE_CONFIDENCE = .99;
+    // turret angle isn't kept in the filter's history, so fixes while it swings can't be placed
+    private static final double MAX_CAMERA_ANGULAR_VELOCITY = 0.05; // rad/s
+
     private final VuforiaLocalizationConsumer vuforiaLocalizationConsumer;
     private final LocationProvider locationProvider;
     private final ExtendedKalmanFilter filter;
     private VuMarkDetection lastDetection;
+    private int badTimestamps = 0;
 
     public VuforiaKalmanListener(
             VuforiaTrackable trackable,
@@ -42,6 +52,21 @@ public class VuforiaKalmanListener extends VuforiaTrackableDefaultListener imple
         this.filter = filter;
     }
 
+    /**
+     * @return when the frame was captured, in {@link SystemClock#elapsedRealtime()} millis
+     */
+    private long captureTime(TrackableResult trackableResult) {
+        long now = SystemClock.elapsedRealtime();
+        // vuforia stamps frames with System.nanoTime(), in seconds
+        long time = SensorClock.toMillis(SensorClock.fromNanoTime((long) (trackableResult.getTimeStamp() * 1e9)));
+
+        if (time > now || time < now - MAX_FRAME_AGE_MILLIS) {
+            badTimestamps++;
+            return now;
+        }
+        return time;
+    }
+
     @SuppressWarnings("ConstantConditions")
     public synchronized void onTracked(TrackableResult trackableResult, CameraName cameraName, Camera camera, VuforiaTrackable child) {
         super.onTracked(trackableResult, cameraName, camera, child);
@@ -66,16 +91,32 @@ public class VuforiaKalmanListener extends VuforiaTrackableDefaultListener imple
                 getRobotLocation(),
                 angleWrap(PI / 2 + Math.atan2(-tZ, tX)),
                 angleWrap(Math.atan2(tZ, tY) - PI / 2),
-                (long) (trackableResult.getTimeStamp() * 1000.)
+                captureTime(trackableResult)
         );
         var pose = lastDetection.getKuriosityPose();
         vuforiaLocalizationConsumer.lastVuforiaPosition = pose;
+        vuforiaLocalizationConsumer.lastDetectedTime = lastDetection.getDetectedTime();
 
         if (isValidDetection(lastDetection)) {
             vuforiaLocalizationConsumer.lastAcceptedTime = lastDetection.getDetectedTime();
+
+            // vuforia's heading is wrapped but the filter's isn't;  without this a fix on the other
+            // side of a wrap would look wildly inconsistent and be gated out.  Only a pose from
+            // inside the history says where the filter's heading was at capture time, so anything
+            // else leaves the fix's heading as it is.
+            double heading = pose.heading;
+            var estimate = locationProvider.getPoseAt(lastDetection.getDetectedTime());
+            if (estimate.isInWindow()) {
+                double estimatedHeading = estimate.getPose().heading;
+                heading = estimatedHeading + angleWrap(pose.heading - estimatedHeading);
+            }
+
+            // inserted at capture time;  the filter replays the odometry that came in since
             filter.datumBuilder()
-                    .mean(pose.x, pose.y, pose.heading)
+                    .time(lastDetection.getDetectedTime())
+                    .mean(pose.x, pose.y, heading)
                     .variance(.04, .04, toRadians(3 * 3))
+                    .gate(GATE_CONFIDENCE)
                     .correct();
         }
     }
@@ -95,15 +136,9 @@ public class VuforiaKalmanListener extends VuforiaTrackableDefaultListener imple
             return false;
         }
 
-        // filter out by translational speed
-        if (locationProvider.getOrthVelocity() > 1) {
-            Log.v("kf", format("DISCARD by trans vel, {0} in/s", locationProvider.getOrthVelocity()));
-            return false;
-        }
-
-        // filter out by angle speeds
-        if (locationProvider.getVelocity().heading > 0.02 || Math.abs(vuforiaLocalizationConsumer.getCameraAngleVelocity()) > 0.05) {
-            Log.v("kf", format("DISCARD by heading vel, {0} deg, {1} deg/s", toDegrees(locationProvider.getVelocity().heading), toDegrees(vuforiaLocalizationConsumer.getCameraAngleVelocity())));
+        // robot motion is left to the filter's gate;  turret motion isn't something it can see
+        if (Math.abs(vuforiaLocalizationConsumer.getCameraAngleVelocity()) > MAX_CAMERA_ANGULAR_VELOCITY) {
+            Log.v("kf", format("DISCARD by camera vel, {0} deg/s", toDegrees(vuforiaLocalizationConsumer.getCameraAngleVelocity())));
             return false;
         }
         return true;
@@ -125,6 +160,8 @@ public class VuforiaKalmanListener extends VuforiaTrackableDefaultListener imple
 
         data.add("vufPose: " + robotLocation);
         data.add("isValidDetection:  " + isValidDetection(lastDetection));
+        data.add("Frame age:  " + (SystemClock.elapsedRealtime() - lastDetection.getDetectedTime()) + " ms");
+        data.add("Bad timestamps:  " + badTimestamps);
 
 
         return data;
@@ -18,10 +18,10 @@ import static org.firstinspires.ftc.robotcore.external.navigation.AxesReference.
 import static java.lang.Math.PI;
 import static java.lang.Math.toRadians;
 
-import android.os.SystemClock;
-
 import com.kuriosityrobotics.firstforward.robot.LocationProvider;
 import com.kuriosityrobotics.firstforward.robot.Robot;
+import com.kuriosityrobotics.firstforward.robot.sensors.HubData;
+import com.kuriosityrobotics.firstforward.robot.sensors.SensorClock;
 import com.kuriosityrobotics.firstforward.robot.sensors.kf.ExtendedKalmanFilter;
 import com.kuriosityrobotics.firstforward.robot.util.Timer;
 import com.kuriosityrobotics.firstforward.robot.util.math.Point;
@@ -67,7 +67,7 @@ public class VuforiaLocalizationConsumer {
     private final ExtendedKalmanFilter kalmanFilter;
     private boolean doneCalibrating = false;
     private VuforiaTrackables freightFrenzyTargets;
-    private long lastUpdateTime = 0;
+    private long lastUpdateTime = 0; // SensorClock nanos of the encoder reading last used
     private double cameraAngleOffset = 0;
     private double oldCameraAngle = 0.0;
     private double cameraAngle = 0.0;
@@ -202,9 +202,10 @@ public class VuforiaLocalizationConsumer {
     }
 
     private double angleToBestVuforiaTarget() {
-        double robotX = locationProvider.getPose().x;
-        double robotY = locationProvider.getPose().y;
-        double robotHeading = locationProvider.getPose().heading;
+        Pose robotPose = locationProvider.getPose();
+        double robotX = robotPose.x;
+        double robotY = robotPose.y;
+        double robotHeading = robotPose.heading;
 
         double pivotX = robotX + SERVO_FORWARD_DISPLACEMENT_MM / MM_PER_INCH * Math.sin(robotHeading) + SERVO_LEFT_DISPLACEMENT_MM / MM_PER_INCH * Math.cos(robotHeading);
         double pivotY = robotY + SERVO_FORWARD_DISPLACEMENT_MM / MM_PER_INCH * Math.cos(robotHeading) - SERVO_LEFT_DISPLACEMENT_MM / MM_PER_INCH * Math.sin(robotHeading);
@@ -249,10 +250,16 @@ public class VuforiaLocalizationConsumer {
     }
 
     private void updateCameraAngleAndVelocity() {
-        long currentUpdateTime = SystemClock.elapsedRealtime();
-        double dTime = (currentUpdateTime - lastUpdateTime) / 1000.0;
-
-        cameraAngle = -(double) (cameraEncoder.getCurrentPosition()) * CAMERA_ENCODER_TO_RADIAN;
+        // the turret encoder is on the expansion hub;  use its latest bulk read, and only
+        // difference when there's been a new one
+        var snapshot = robot.getHubData().get(HubData.Hub.EXPANSION);
+        long currentUpdateTime = snapshot == null ? SensorClock.nanos() : snapshot.getTime();
+        if (currentUpdateTime == lastUpdateTime)
+            return;
+        double dTime = (currentUpdateTime - lastUpdateTime) / 1e9;
+
+        int position = snapshot == null ? cameraEncoder.getCurrentPosition() : snapshot.getCurrentPosition(cameraEncoder);
+        cameraAngle = -(double) position * CAMERA_ENCODER_TO_RADIAN;
         cameraAngle -= cameraAngleOffset;
 
         cameraAngleVelocity = (cameraAngle - oldCameraAngle) / dTime;
@@ -0,0 +1,44 @@
+package com.kuriosityrobotics.firstforward.robot.sensors;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RollingVelocityCalculatorTest {
+    private static final double TOLERANCE = 1e-9;
+
+    private static class Calculator extends RollingVelocityCalculator {
+        void add(double timestamp, double x, double y, double heading) {
+            addRollingVelocitySample(timestamp, x, y, heading);
+        }
+    }
+
+    @Test
+    public void slopeOverWindow() {
+        var calculator = new Calculator();
+        for (int i = 0; i <= 10; i++)
+            calculator.add(i * .01, i * .2, -i * .1, i * .001);
+
+        var velocity = calculator.getRollingVelocity();
+        assertEquals(20, velocity.x, TOLERANCE);
+        assertEquals(-10, velocity.y, TOLERANCE);
+        assertEquals(.1, velocity.heading, TOLERANCE);
+    }
+
+    /**
+     * After a gap longer than the window there's only the newest sample left, so the old velocity
+     * mustn't be kept.
+     */
+    @Test
+    public void gapLongerThanWindowClearsVelocity() {
+        var calculator = new Calculator();
+        for (int i = 0; i <= 10; i++)
+            calculator.add(i * .01, i * .2, 0, 0);
+
+        calculator.add(1, 2, 0, 0);
+        var velocity = calculator.getRollingVelocity();
+        assertEquals(0, velocity.x, TOLERANCE);
+        assertEquals(0, velocity.y, TOLERANCE);
+        assertEquals(0, velocity.heading, TOLERANCE);
+    }
+}
@@ -0,0 +1,86 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ExtendedKalmanFilterTest {
+    private static final double TOLERANCE = 1e-9;
+
+    private static void predictRobotRelative(ExtendedKalmanFilter filter, long time, double dx, double dy, double dHeading) {
+        filter.datumBuilder().time(time).mean(dx, dy, dHeading).variance(.01, .01, .001).robotRelative().predict();
+    }
+
+    /**
+     * A robot-relative prediction is turned by the heading the filter had just before it, even if
+     * the prediction that changed that heading arrives later.
+     */
+    @Test
+    public void robotRelativePredictionUsesHeadingAtItsPlaceInHistory() {
+        var inOrder = new ExtendedKalmanFilter(new double[]{0, 0, 0}, 1, 1, 1);
+        predictRobotRelative(inOrder, 10, 1, 0, Math.PI / 2);
+        predictRobotRelative(inOrder, 20, 1, 0, 0);
+
+        var late = new ExtendedKalmanFilter(new double[]{0, 0, 0}, 1, 1, 1);
+        predictRobotRelative(late, 20, 1, 0, 0);
+        predictRobotRelative(late, 10, 1, 0, Math.PI / 2);
+
+        for (var filter : new ExtendedKalmanFilter[]{inOrder, late}) {
+            var pose = filter.getSnapshot();
+            // forward at 0, then forward at 90 degrees (MathUtil.rotate turns +x towards -y)
+            assertEquals(1, pose.getState(0), TOLERANCE);
+            assertEquals(-1, pose.getState(1), TOLERANCE);
+            assertEquals(Math.PI / 2, pose.getState(2), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void poseAtTimeWithoutHistoryIsNoHistory() {
+        var filter = new ExtendedKalmanFilter(new double[]{1, 2, 3}, 1, 1, 1);
+        var pose = filter.getPoseAt(100);
+        assertEquals(PoseAtTime.Status.NO_HISTORY, pose.getStatus());
+        assertEquals(1, pose.getPose().x, TOLERANCE);
+    }
+
+    /**
+     * Once old entries have been dropped, the oldest one left has a real time, and poses between
+     * it and the next entry are interpolated like anywhere else.
+     */
+    @Test
+    public void poseAtTimeInterpolatesFromOldestEntry() {
+        var filter = new ExtendedKalmanFilter(new double[]{0, 0, 0}, 1, 1, 1);
+        // a second apart, so the first falls out of the three second window
+        for (long time = 1000; time <= 5000; time += 1000)
+            filter.datumBuilder().time(time).mean(1, 0, 0).variance(.01, .01, .001).predict();
+
+        var pose = filter.getPoseAt(1500);
+        assertEquals(PoseAtTime.Status.IN_WINDOW, pose.getStatus());
+        assertEquals(1.5, pose.getPose().x, TOLERANCE);
+    }
+
+    /**
+     * At a steady rate the velocity states settle on the odometry's rate, and the positions, which
+     * are moved by the velocity, keep up with the odometry.
+     */
+    @Test
+    public void velocityStatesFollowSteadyOdometry() {
+        var filter = new ExtendedKalmanFilter(ExtendedKalmanFilter.Engine.FIXED, true, new double[3], new double[3]);
+        // 40 in/s forward and .5 rad/s, in 10 ms steps
+        for (long time = 10; time <= 2000; time += 10)
+            filter.datumBuilder().time(time).mean(.4, 0, .005).variance(.01, .01, 1e-4).robotRelative().predict();
+
+        var pose = filter.getSnapshot();
+        double heading = pose.getState(2);
+        assertEquals(1, heading, .01);
+        assertEquals(40 * Math.cos(heading), pose.getState(3), .5);
+        assertEquals(-40 * Math.sin(heading), pose.getState(4), .5);
+        assertEquals(.5, pose.getState(5), .01);
+
+        // the same odometry without velocity states, where each step moves the position directly
+        var direct = new ExtendedKalmanFilter(new double[3], new double[3]);
+        for (long time = 10; time <= 2000; time += 10)
+            direct.datumBuilder().time(time).mean(.4, 0, .005).variance(.01, .01, 1e-4).robotRelative().predict();
+        assertEquals(direct.getSnapshot().getState(0), pose.getState(0), .5);
+        assertEquals(direct.getSnapshot().getState(1), pose.getState(1), .5);
+    }
+}
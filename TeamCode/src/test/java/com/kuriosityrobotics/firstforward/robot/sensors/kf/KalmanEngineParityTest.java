@@ -0,0 +1,177 @@
+package com.kuriosityrobotics.firstforward.robot.sensors.kf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.ojalgo.matrix.Primitive64Matrix;
+
+import java.util.Random;
+
+/**
+ * {@link ExtendedKalmanFilter.Engine#FIXED} is meant to be a faster way of doing exactly what
+ * {@link ExtendedKalmanFilter.Engine#OJALGO} does, so the two are run side by side through the
+ * same data and must agree to within rounding.
+ */
+public class KalmanEngineParityTest {
+    private static final double TOLERANCE = 1e-9;
+
+    private static Primitive64Matrix rotation(double heading) {
+        return Primitive64Matrix.FACTORY.rows(new double[][]{
+                {Math.cos(heading), -Math.sin(heading), 0},
+                {Math.sin(heading), Math.cos(heading), 0},
+                {0, 0, 1}
+        });
+    }
+
+    // a random symmetric positive definite 3x3 matrix, with correlations
+    private static Primitive64Matrix randomCovariance(Random random) {
+        var a = new double[3][3];
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 3; j++)
+                a[i][j] = random.nextGaussian();
+        var A = Primitive64Matrix.FACTORY.rows(a);
+        var covariance = A.multiply(A.transpose()).add(ExtendedKalmanFilter.diagonal(.1, .1, .1));
+        // make it exactly symmetric
+        var data = new double[3][3];
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 3; j++)
+                data[i][j] = (covariance.doubleValue(i, j) + covariance.doubleValue(j, i)) / 2;
+        return Primitive64Matrix.FACTORY.rows(data);
+    }
+
+    private static KalmanDatum prediction(long time, Random random, double heading) {
+        var mean = Primitive64Matrix.FACTORY.column(random.nextGaussian(), random.nextGaussian(), random.nextGaussian() * .1);
+        return new KalmanDatum(time, mean, ExtendedKalmanFilter.diagonal(.01, .02, .001), rotation(heading).transpose());
+    }
+
+    private static KalmanDatum correction(long time, Random random, Primitive64Matrix covariance) {
+        var mean = Primitive64Matrix.FACTORY.column(random.nextGaussian() * 5, random.nextGaussian() * 5, random.nextGaussian());
+        return new KalmanDatum(time, mean, covariance, Primitive64Matrix.FACTORY.makeIdentity(3));
+    }
+
+    private static double[] initialCovariance() {
+        return new double[]{
+                2, .3, .1,
+                .3, 1, -.2,
+                .1, -.2, .5
+        };
+    }
+
+    @Test
+    public void coresAgreeOnPredictCorrectAndSmooth() {
+        var random = new Random(42);
+        var fixed = KalmanCore.create(ExtendedKalmanFilter.Engine.FIXED, 3);
+        var ojalgo = KalmanCore.create(ExtendedKalmanFilter.Engine.OJALGO, 3);
+
+        double[] fixedMean = {1, 2, .5}, ojalgoMean = fixedMean.clone();
+        double[] fixedCovariance = initialCovariance(), ojalgoCovariance = fixedCovariance.clone();
+
+        for (int step = 0; step < 50; step++) {
+            KalmanDatum datum;
+            boolean correction = step % 5 == 4;
+            if (!correction)
+                datum = prediction(step, random, fixedMean[2]);
+            else if (step % 10 == 4)
+                datum = correction(step, random, randomCovariance(random)); // joint
+            else
+                datum = correction(step, random, ExtendedKalmanFilter.diagonal(.5, .5, .05)); // sequential
+
+            if (correction) {
+                fixed.correct(fixedMean, fixedCovariance, datum);
+                ojalgo.correct(ojalgoMean, ojalgoCovariance, datum);
+            } else {
+                fixed.predict(fixedMean, fixedCovariance, datum);
+                ojalgo.predict(ojalgoMean, ojalgoCovariance, datum);
+            }
+
+            assertArrayEquals("mean after step " + step, ojalgoMean, fixedMean, TOLERANCE);
+            assertArrayEquals("covariance after step " + step, ojalgoCovariance, fixedCovariance, TOLERANCE);
+        }
+
+        // one backward step from a full-state correction
+        var latest = correction(51, random, randomCovariance(random));
+        double[] nextCovariance = fixedCovariance.clone();
+        fixed.correct(fixedMean, fixedCovariance, latest);
+        ojalgo.correct(ojalgoMean, ojalgoCovariance, latest);
+
+        double[] fixedSmoothedMean = {0, 0, 0}, ojalgoSmoothedMean = fixedSmoothedMean.clone();
+        double[] fixedSmoothedCovariance = initialCovariance(), ojalgoSmoothedCovariance = fixedSmoothedCovariance.clone();
+        fixed.smooth(fixedSmoothedMean, fixedSmoothedCovariance, nextCovariance, fixedMean, fixedCovariance, latest);
+        ojalgo.smooth(ojalgoSmoothedMean, ojalgoSmoothedCovariance, nextCovariance, ojalgoMean, ojalgoCovariance, latest);
+
+        assertArrayEquals("smoothed mean", ojalgoSmoothedMean, fixedSmoothedMean, TOLERANCE);
+        assertArrayEquals("smoothed covariance", ojalgoSmoothedCovariance, fixedSmoothedCovariance, TOLERANCE);
+    }
+
+    /**
+     * A correction with independent outputs may be applied one output at a time;  that has to give
+     * the same posterior as applying it all at once.
+     */
+    @Test
+    public void sequentialCorrectionMatchesJoint() {
+        var random = new Random(7);
+        for (var engine : ExtendedKalmanFilter.Engine.values()) {
+            var core = KalmanCore.create(engine, 3);
+
+            double[] sequentialMean = {1, -1, .2}, jointMean = sequentialMean.clone();
+            double[] sequentialCovariance = initialCovariance(), jointCovariance = sequentialCovariance.clone();
+
+            var datum = correction(0, random, ExtendedKalmanFilter.diagonal(.3, .7, .02));
+            core.correct(sequentialMean, sequentialCovariance, datum);
+            core.correctJointly(jointMean, jointCovariance, datum);
+
+            assertArrayEquals(engine + " mean", jointMean, sequentialMean, TOLERANCE);
+            assertArrayEquals(engine + " covariance", jointCovariance, sequentialCovariance, TOLERANCE);
+        }
+    }
+
+    /**
+     * The whole filter, including late corrections (which replay the history) and the smoothed
+     * history behind them.
+     */
+    @Test
+    public void filtersAgree() {
+        for (boolean estimateVelocity : new boolean[]{false, true}) {
+            var fixed = new ExtendedKalmanFilter(ExtendedKalmanFilter.Engine.FIXED, estimateVelocity, new double[]{0, 0, 0}, 1, 1, .1);
+            var ojalgo = new ExtendedKalmanFilter(ExtendedKalmanFilter.Engine.OJALGO, estimateVelocity, new double[]{0, 0, 0}, 1, 1, .1);
+
+            var random = new Random(1234);
+            for (long time = 10; time <= 1000; time += 10) {
+                double dx = random.nextGaussian(), dy = random.nextGaussian(), dHeading = random.nextGaussian() * .05;
+                for (var filter : new ExtendedKalmanFilter[]{fixed, ojalgo})
+                    filter.datumBuilder().time(time).mean(dx, dy, dHeading).variance(.01, .01, .001).predict();
+
+                if (time % 100 == 0) {
+                    // arrives late, so both filters replay from 35 ms ago
+                    var covariance = randomCovariance(random);
+                    double x = random.nextGaussian() * 3, y = random.nextGaussian() * 3, heading = random.nextGaussian() * .3;
+                    for (var filter : new ExtendedKalmanFilter[]{fixed, ojalgo})
+                        filter.datumBuilder().time(time - 35).mean(x, y, heading).covariance(covariance).correct();
+                }
+                if (time % 50 == 0) {
+                    double heading = random.nextGaussian() * .3;
+                    for (var filter : new ExtendedKalmanFilter[]{fixed, ojalgo})
+                        filter.datumBuilder().time(time).mean(heading).variance(.01)
+                                .stateToOutput(Primitive64Matrix.FACTORY.row(0, 0, 1)).correct();
+                }
+
+                var fixedSnapshot = fixed.getSnapshot();
+                var ojalgoSnapshot = ojalgo.getSnapshot();
+                assertEquals(ojalgoSnapshot.getDimension(), fixedSnapshot.getDimension());
+                for (int i = 0; i < fixedSnapshot.getDimension(); i++) {
+                    assertEquals("state " + i + " at " + time, ojalgoSnapshot.getState(i), fixedSnapshot.getState(i), TOLERANCE);
+                    assertEquals("variance " + i + " at " + time, ojalgoSnapshot.getVariance(i), fixedSnapshot.getVariance(i), TOLERANCE);
+                }
+            }
+
+            for (long time = 700; time <= 1000; time += 25) {
+                var fixedSmoothed = fixed.smoothedVectorAt(time);
+                var ojalgoSmoothed = ojalgo.smoothedVectorAt(time);
+                assertNotNull(fixedSmoothed);
+                assertArrayEquals("smoothed at " + time, ojalgoSmoothed, fixedSmoothed, TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.kuriosityrobotics.firstforward.robot.util.wrappers;
+
+import static org.junit.Assert.assertEquals;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorEx;
+
+import org.firstinspires.ftc.robotcore.external.navigation.AngleUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CachedMotorTest {
+    // every write that reached the motor, as "method(arguments)"
+    private final List<String> writes = new ArrayList<>();
+    private long time = 0;
+    private DcMotorEx motor;
+
+    @Before
+    public void setUp() {
+        motor = (DcMotorEx) Proxy.newProxyInstance(DcMotorEx.class.getClassLoader(), new Class<?>[]{DcMotorEx.class},
+                (proxy, method, args) -> {
+                    writes.add(method.getName() + (args == null ? "()" : List.of(args).toString()));
+                    return null;
+                });
+    }
+
+    private CachedMotor cached(double angularVelocityTolerance) {
+        return new CachedMotor(motor, CachedMotor.DEFAULT_POWER_TOLERANCE, CachedMotor.DEFAULT_VELOCITY_TOLERANCE, angularVelocityTolerance) {
+            @Override
+            long now() {
+                return time;
+            }
+        };
+    }
+
+    @Test
+    public void powerWithinToleranceIsDropped() {
+        var cached = cached(CachedMotor.DEFAULT_ANGULAR_VELOCITY_TOLERANCE);
+        cached.setPower(.5);
+        cached.setPower(.5005);
+        cached.setPower(.502);
+        assertEquals(List.of("setPower[0.5]", "setPower[0.502]"), writes);
+    }
+
+    @Test
+    public void ticksPerSecondToleranceDoesNotApplyToAngularVelocity() {
+        // a tick per second on a 1035 tick motor, like the carousel
+        var cached = cached(2 * Math.PI / 1035);
+        cached.setVelocity(0, AngleUnit.RADIANS);
+        // well under a tick per second in ticks/s terms, but a ramp step in rad/s
+        cached.setVelocity(.02, AngleUnit.RADIANS);
+        cached.setVelocity(.021, AngleUnit.RADIANS);
+        assertEquals(2, writes.size());
+
+        // the same tolerance, converted:  .2 deg/s is under a tick per second, .5 isn't
+        writes.clear();
+        cached.setVelocity(10, AngleUnit.DEGREES);
+        cached.setVelocity(10.2, AngleUnit.DEGREES);
+        cached.setVelocity(10.5, AngleUnit.DEGREES);
+        assertEquals(2, writes.size());
+
+        writes.clear();
+        cached.setVelocity(100);
+        cached.setVelocity(100.5);
+        cached.setVelocity(102);
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void repeatedWriteGoesOutAfterRefresh() {
+        var cached = cached(CachedMotor.DEFAULT_ANGULAR_VELOCITY_TOLERANCE);
+        cached.setPower(.3);
+        time += CachedOutput.REFRESH_MILLIS - 1;
+        cached.setPower(.3);
+        assertEquals(1, writes.size());
+
+        time += 1;
+        cached.setPower(.3);
+        assertEquals(2, writes.size());
+    }
+
+    /**
+     * A power that changes every loop mustn't keep the repeated mode and target from being
+     * refreshed.
+     */
+    @Test
+    public void eachPropertyIsRefreshedOnItsOwn() {
+        var cached = cached(CachedMotor.DEFAULT_ANGULAR_VELOCITY_TOLERANCE);
+        for (int loop = 0; loop <= 100; loop++) {
+            cached.setMode(DcMotor.RunMode.RUN_TO_POSITION);
+            cached.setTargetPosition(500);
+            cached.setPower(loop / 100.);
+            time += 15;
+        }
+
+        long modes = writes.stream().filter(write -> write.startsWith("setMode")).count();
+        long targets = writes.stream().filter(write -> write.startsWith("setTargetPosition")).count();
+        // 1.5 s of loops:  sent at first, and again a second later
+        assertEquals(2, modes);
+        assertEquals(2, targets);
+    }
+}